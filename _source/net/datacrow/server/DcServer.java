@@ -49,8 +49,11 @@ import net.datacrow.core.security.SecuredUser;
 import net.datacrow.core.server.Connector;
 import net.datacrow.core.utilities.CoreUtilities;
 import net.datacrow.core.utilities.DataDirectoryCreator;
+import net.datacrow.server.backup.Backup;
 import net.datacrow.server.db.DatabaseInvalidException;
 import net.datacrow.server.db.DatabaseManager;
+import net.datacrow.server.db.QueryStatistics;
+import net.datacrow.server.db.SlowQueryLog;
 import net.datacrow.server.security.SecurityCenter;
 import net.datacrow.server.web.DcImageWebServer;
 import net.datacrow.server.web.DcWebServer;
@@ -143,6 +146,24 @@ public class DcServer implements Runnable, IStarterClient, IClient {
                 } catch (NumberFormatException nfe) {
                     logger.error("Incorrect port number " + port, nfe);
                 }                
+            } else if (arg.toLowerCase().startsWith("-queryworkers:")) {
+                String s = arg.substring("-queryworkers:".length());
+                try {
+                    DatabaseManager.getInstance().setQueryWorkers(Integer.parseInt(s));
+                } catch (NumberFormatException nfe) {
+                    logger.error("Incorrect number of query workers " + s, nfe);
+                }
+            } else if (arg.toLowerCase().startsWith("-slowquery:")) {
+                String s = arg.substring("-slowquery:".length());
+                try {
+                    SlowQueryLog.getInstance().setThreshold(Long.parseLong(s));
+                } catch (NumberFormatException nfe) {
+                    logger.error("Incorrect slow query threshold " + s, nfe);
+                }
+            } else if (arg.toLowerCase().startsWith("-querystats")) {
+                QueryStatistics.getInstance().setEnabled(true);
+            } else if (arg.toLowerCase().startsWith("-incrementalbackup")) {
+                Backup.setIncrementalDefault(true);
             } else if (arg.toLowerCase().startsWith("-db:")) {
                 db = arg.substring("-db:".length());
             } else if (arg.toLowerCase().startsWith("-debug")) {
@@ -297,6 +318,22 @@ public class DcServer implements Runnable, IStarterClient, IClient {
         System.out.println("Specifies the port to be used by the image server.");
         System.out.println("Example: java -jar datacrow-server.jar -imageserverport:9001");        
         System.out.println("");
+        System.out.println("-queryworkers:<number of threads>");
+        System.out.println("Specifies the number of threads storing the queued changes (default is 1).");
+        System.out.println("Example: java -jar datacrow-server.jar -queryworkers:2");
+        System.out.println("");
+        System.out.println("-incrementalbackup");
+        System.out.println("Backups only store the files which are new or have changed since the previous backup in the same directory. Restoring requires the archives of the previous backups to be present in the same directory.");
+        System.out.println("Example: java -jar datacrow-server.jar -incrementalbackup");
+        System.out.println("");
+        System.out.println("-slowquery:<milliseconds>");
+        System.out.println("Queries taking at least this long are logged to slow_queries.log in the database directory (default is 1000, -1 disables the log).");
+        System.out.println("Example: java -jar datacrow-server.jar -slowquery:500");
+        System.out.println("");
+        System.out.println("-querystats");
+        System.out.println("Collects timings per query and module. A report is logged when the database is closed. Connections are instrumented, which adds a small overhead.");
+        System.out.println("Example: java -jar datacrow-server.jar -querystats");
+        System.out.println("");
         System.out.println("");
         System.out.println("-webserverport:<port number>");
         System.out.println("Specifies the port to be used by the web server.");
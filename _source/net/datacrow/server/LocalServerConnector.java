@@ -57,6 +57,7 @@ import net.datacrow.core.server.Connector;
 import net.datacrow.core.server.response.ServerModulesRequestResponse;
 import net.datacrow.core.wf.tasks.DcTask;
 import net.datacrow.server.data.DataManager;
+import net.datacrow.server.data.Prefetch;
 import net.datacrow.server.db.DatabaseManager;
 import net.datacrow.server.security.SecurityCenter;
 import net.datacrow.settings.DcSettings;
@@ -179,6 +180,24 @@ public class LocalServerConnector extends Connector {
     	return success;
     }
 
+    /**
+     * Deletes all items matching the filter in one go. 
+     * Note that the before and after delete hooks of the items are not called.
+     * @return The number of deleted items.
+     */
+    public int deleteItems(DataFilter df) {
+        return DatabaseManager.getInstance().delete(getUser(), df);
+    }
+
+    /**
+     * Sets the value of a field for all items matching the filter in one go.
+     * Note that the before and after save hooks of the items are not called.
+     * @return The number of updated items.
+     */
+    public int updateItems(DataFilter df, int field, Object value) {
+        return DatabaseManager.getInstance().update(getUser(), df, field, value);
+    }
+
     @Override
     public boolean saveItem(DcObject dco) throws ValidationException {
     	dco.beforeSave();
@@ -196,6 +215,10 @@ public class LocalServerConnector extends Connector {
 
     @Override
     public Collection<Picture> getPictures(String parentID) {
+        Collection<Picture> prefetched = Prefetch.getPictures(parentID);
+        if (prefetched != null)
+            return prefetched;
+        
         DataFilter df = new DataFilter(DcModules._PICTURE);
         df.addEntry(new DataFilterEntry(DcModules._PICTURE, Picture._A_OBJECTID, Operator.EQUAL_TO, parentID));
 		List<DcObject> items =  DataManager.getInstance().getItems(getUser(), df);
@@ -210,6 +233,10 @@ public class LocalServerConnector extends Connector {
 
     @Override
     public Collection<DcObject> getReferences(int mappingModuleIdx, String parentKey, boolean full) {
+        Collection<DcObject> prefetched = Prefetch.getReferences(mappingModuleIdx, parentKey, full);
+        if (prefetched != null)
+            return prefetched;
+        
 		DataFilter df = new DataFilter(mappingModuleIdx);
 		df.addEntry(new DataFilterEntry(mappingModuleIdx, DcMapping._A_PARENT_ID, Operator.EQUAL_TO, parentKey));
 		int[] fields = full ? null : DcModules.get(mappingModuleIdx).getMinimalFields(null);
@@ -234,6 +261,10 @@ public class LocalServerConnector extends Connector {
 
     @Override
     public Loan getCurrentLoan(String parentKey) {
+        Loan prefetched = Prefetch.getCurrentLoan(parentKey);
+        if (prefetched != null)
+            return prefetched;
+        
         DataFilter df = new DataFilter(DcModules._LOAN);
         df.addEntry(new DataFilterEntry(DcModules._LOAN, Loan._B_ENDDATE, Operator.IS_EMPTY, null));
         df.addEntry(new DataFilterEntry(DcModules._LOAN, Loan._D_OBJECTID, Operator.EQUAL_TO, parentKey));
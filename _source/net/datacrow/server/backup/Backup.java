@@ -25,13 +25,24 @@
 
 package net.datacrow.server.backup;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.datacrow.core.DcConfig;
 import net.datacrow.core.DcRepository;
@@ -43,14 +54,6 @@ import net.datacrow.settings.DcSettings;
 
 import org.apache.log4j.Logger;
 
-import de.schlichtherle.truezip.file.TArchiveDetector;
-import de.schlichtherle.truezip.file.TConfig;
-import de.schlichtherle.truezip.file.TFile;
-import de.schlichtherle.truezip.file.TFileWriter;
-import de.schlichtherle.truezip.file.TVFS;
-import de.schlichtherle.truezip.fs.archive.zip.JarDriver;
-import de.schlichtherle.truezip.socket.sl.IOPoolLocator;
-
 /**
  * Performs a backup of the Data Crow data, settings, modules and reports.
  * 
@@ -59,22 +62,87 @@ import de.schlichtherle.truezip.socket.sl.IOPoolLocator;
 public class Backup extends Thread {
     
     private static Logger logger = Logger.getLogger(Backup.class.getName());
+    
+    // the manifest of the last backup, kept in the backup directory
+    private static final String _MANIFEST = "datacrow_backup.manifest";
+    
+    private static boolean incrementalDefault = false;
 
     private File directory;
     private IBackupRestoreClient client;
     private String comment;
     
-    private TArchiveDetector ad = new TArchiveDetector("zip", new JarDriver(IOPoolLocator.SINGLETON));
+    private boolean online;
+    private boolean incremental = incrementalDefault;
+    
+    // the archive holding the content per blob name
+    private final Map<String, String> blobs = new HashMap<String, String>();
+    private int duplicates = 0;
+    private long saved = 0;
  
     /**
-     * Creates a new instance.
+     * Creates a new instance. The backup is created online; the database remains available.
      * @param client The listener which will be informed of events and errors.
      * @param directory The directory where the backup will be created.
      */
     public Backup(IBackupRestoreClient client, File directory, String comment) {
+        this(client, directory, comment, true);
+    }
+    
+    /**
+     * Creates a new instance.
+     * @param client The listener which will be informed of events and errors.
+     * @param directory The directory where the backup will be created.
+     * @param online Indicates if the database should remain available during the backup. 
+     * When false the database is closed (and compacted) before the files are copied.
+     */
+    public Backup(IBackupRestoreClient client, File directory, String comment, boolean online) {
         this.directory = directory;
         this.comment = comment;
         this.client = client;
+        this.online = online;
+    }
+    
+    /**
+     * Indicates if new backups are incremental by default.
+     */
+    public static void setIncrementalDefault(boolean incremental) {
+        incrementalDefault = incremental;
+    }
+    
+    /**
+     * Indicates if only the files which are new or have changed since the last backup
+     * (made to the same directory) should be stored. When there is no previous backup 
+     * a full backup is made.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+    
+    /**
+     * Retrieves the manifest of the previous backup, if the archive of that backup 
+     * (and of the backups it is based on) is still present.
+     */
+    private BackupManifest getPreviousManifest() {
+        try {
+            BackupManifest manifest = BackupManifest.load(new File(directory, _MANIFEST));
+            
+            if (manifest == null)
+                return null;
+            
+            for (String name : manifest.getNames()) {
+                if (!new File(directory, manifest.get(name).getArchive()).exists()) {
+                    logger.warn("Archive " + manifest.get(name).getArchive() + " of a previous backup is missing, " + 
+                                "a full backup is made instead");
+                    return null;
+                }
+            }
+            
+            return manifest;
+        } catch (IOException ioe) {
+            logger.error("The manifest of the previous backup could not be read, a full backup is made instead", ioe);
+            return null;
+        }
     }
     
     /**
@@ -102,30 +170,154 @@ public class Backup extends Thread {
         return files;
     }
 
+    /**
+     * Indicates if the file is one of the files maintained by the database engine.
+     * In online mode these are replaced by the files created by the database backup.
+     */
+    private boolean isDatabaseFile(String filename) {
+        File dir = new File(DcConfig.getInstance().getDatabaseDir());
+        String name = DatabaseManager.getInstance().getName() + ".";
+        
+        File file = new File(filename);
+        File parent = file.getParentFile();
+        
+        return parent != null && 
+              ((parent.equals(dir) && file.getName().startsWith(name)) ||
+               (parent.getParentFile() != null && parent.getParentFile().equals(dir) && parent.getName().startsWith(name)));
+    }
+    
+    /**
+     * The name of the file within the backup; the path relative to the data directory.
+     */
+    private String getEntryName(String filename) {
+        String name = filename.substring(DcConfig.getInstance().getDataDir().length() - 
+                (DcConfig.getInstance().getDataDir().startsWith("/") && !filename.startsWith("/") ? 2 : 1));
+        
+        while (name.startsWith("/") || name.startsWith("\\"))
+            name = name.substring(1);
+        
+        return name.replace('\\', '/');
+    }
+    
+    /**
+     * Creates a unique name for the archive. Existing archives are never overwritten; the 
+     * manifests of the (incremental) backups made after them can refer to their content.
+     */
     private String getZipFile(String target) {
         Calendar cal = Calendar.getInstance();
-        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd_HHmm");
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd_HHmmss");
         String date = format.format(cal.getTime());
-
-        String filename = "datacrow_backup_" + date + ".zip";
-        String zipFile = target.endsWith(File.separator) ? target + filename :
-                                                           target + File.separator + filename;
+        
+        String directory = target.endsWith(File.separator) ? target : target + File.separator;
+        
+        String zipFile = directory + "datacrow_backup_" + date + ".zip";
+        for (int i = 1; new File(zipFile).exists(); i++)
+            zipFile = directory + "datacrow_backup_" + date + "_" + i + ".zip";
+        
         return zipFile;
     }    
     
-    private void addEntry(String zipName, String source) {
+    /**
+     * Registers the file in the manifest and adds it to the archive, unless the manifest 
+     * refers to the copy of a previous backup. Images are added content addressed; content 
+     * already present in this or in a previous archive is not added again.
+     */
+    private void addEntry(BackupWriter writer, String name, File source, BackupManifest.Entry entry, BackupManifest manifest) 
+            throws IOException {
+        
+        if (entry.isBlob()) {
+            String blob = entry.getEntryName(name);
+            String archive = blobs.get(blob);
+            
+            if (archive == null) {
+                archive = manifest.getArchive();
+                blobs.put(blob, archive);
+                writer.add(blob, source);
+            } else if (archive.equals(manifest.getArchive())) {
+                // content referred to in a previous archive would not have been stored again anyway
+                duplicates++;
+                saved += entry.getSize();
+            }
+            
+            manifest.put(name, entry.copy(archive));
+        } else {
+            manifest.put(name, entry);
+            
+            if (entry.getArchive().equals(manifest.getArchive()))
+                writer.add(name, source);
+        }
+    }
+    
+    /**
+     * Creates the manifest entries for the files. The files are hashed in parallel.
+     * @param files The files, by name within the backup.
+     * @return The entries, in the order of the files.
+     */
+    private List<Future<BackupManifest.Entry>> createEntries(
+            ExecutorService executor, Map<String, File> files, final BackupManifest manifest, final BackupManifest previous) {
+        
+        List<Future<BackupManifest.Entry>> entries = new ArrayList<Future<BackupManifest.Entry>>();
+        for (final Map.Entry<String, File> file : files.entrySet()) {
+            entries.add(executor.submit(new Callable<BackupManifest.Entry>() {
+                @Override
+                public BackupManifest.Entry call() throws Exception {
+                    return manifest.createEntry(file.getKey(), file.getValue(), 
+                            previous != null ? previous.get(file.getKey()) : null);
+                }
+            }));
+        }
+        
+        return entries;
+    }
+    
+    private BackupManifest.Entry get(Future<BackupManifest.Entry> future) throws Exception {
         try {
-            TConfig.get().setArchiveDetector(ad);
-            TFile src = new TFile(source, ad);
-            TFile dst = new TFile(zipName, ad);
-            src.cp_rp(dst);
-        } catch (IOException e) {
-            client.notifyError(e);
+            return future.get();
+        } catch (ExecutionException ee) {
+            throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
         }
     }
     
+    /**
+     * Leaves the files which were skipped by the writer out of the manifest.
+     */
+    private void removeSkipped(BackupWriter writer, BackupManifest manifest) {
+        Collection<String> skipped = writer.getSkipped();
+        if (skipped.isEmpty())
+            return;
+        
+        BackupManifest.Entry entry;
+        for (String name : new ArrayList<String>(manifest.getNames())) {
+            entry = manifest.get(name);
+            
+            if (entry.getArchive().equals(manifest.getArchive()) && skipped.contains(entry.getEntryName(name)))
+                manifest.remove(name);
+        }
+        
+        logger.warn(skipped.size() + " files were removed or changed during the backup and have not been backed up");
+    }
+    
+    private void addManifest(BackupWriter writer, BackupManifest manifest, BackupManifest previous) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        manifest.save(bos);
+        writer.add(BackupManifest._NAME, bos.toByteArray());
+        
+        if (previous == null)
+            return;
+        
+        StringBuffer deleted = new StringBuffer();
+        for (String name : previous.getNames()) {
+            if (manifest.get(name) == null)
+                deleted.append(name + "\n");
+        }
+        
+        writer.add(BackupManifest._DELETED, deleted.toString().getBytes("UTF-8"));
+    }
+    
     /**
      * Performs the actual back up and informs the clients on the progress.
+     * In online mode the database is backed up by the database engine into a temporary 
+     * directory while the other files are being archived.
      */
     @Override
     public void run() {
@@ -134,71 +326,184 @@ public class Backup extends Thread {
             directory.mkdirs();
         
         client.notify(DcResources.getText("msgStartBackup"));
-        client.notify(DcResources.getText("msgClosingDb"));
         
-        DatabaseManager.getInstance().closeDatabases(true);
+        DatabaseBackup databaseBackup = null;
+        if (online) {
+            databaseBackup = new DatabaseBackup(new File(System.getProperty("java.io.tmpdir"), "dc_backup_" + System.currentTimeMillis()));
+            databaseBackup.start();
+        } else {
+            client.notify(DcResources.getText("msgClosingDb"));
+            DatabaseManager.getInstance().closeDatabases(true);
+        }
 
         Collection<String> files = getFiles();
         client.notifyTaskStarted(files.size());
         
+        String zipFileName = getZipFile(directory.toString());
+        BackupWriter writer = null;
+        
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService hashing = Executors.newFixedThreadPool(threads);
+        
         try {
-            String zipFileName = getZipFile(directory.toString());
+            writer = new BackupWriter(new File(zipFileName), threads);
+            writer.setSkipChanged(online);
             
-            File entry = new TFile(zipFileName + File.separator +  "version.txt", ad);
-            Writer writer = new TFileWriter(entry);
-            try {
-                writer.write(DcConfig.getInstance().getVersion().toString());
-                if (comment.length() > 0)
-                    writer.write("\n" + comment);
-            } catch (IOException e) {
-                client.notifyError(e);
-            } finally {
-                writer.close();
+            BackupManifest previous = incremental ? getPreviousManifest() : null;
+            BackupManifest manifest = new BackupManifest(new File(zipFileName).getName());
+            
+            if (previous != null) {
+                manifest.setBase(previous.getArchive());
+                
+                // content stored by the previous backups can be referred to
+                for (String name : previous.getNames()) {
+                    if (previous.get(name).isBlob())
+                        blobs.put(previous.get(name).getEntryName(name), previous.get(name).getArchive());
+                }
             }
             
-            String name;
+            String version = DcConfig.getInstance().getVersion().toString() + (comment.length() > 0 ? "\n" + comment : "");
+            writer.add("version.txt", version.getBytes("UTF-8"));
+            
+            // the live database files are replaced by the files of the database backup
+            Map<String, File> sources = new LinkedHashMap<String, File>();
             for (String filename : files) {
+                if (!online || !isDatabaseFile(filename))
+                    sources.put(getEntryName(filename), new File(filename));
+            }
+            
+            Iterator<Future<BackupManifest.Entry>> entries = createEntries(hashing, sources, manifest, previous).iterator();
+            BackupManifest.Entry entry;
+            for (Map.Entry<String, File> source : sources.entrySet()) {
+                client.notifyProcessed();
                 
-                name =  filename.substring(DcConfig.getInstance().getDataDir().length() - 
-                        (DcConfig.getInstance().getDataDir().startsWith("/") && !filename.startsWith("/") ? 2 : 1));
-                
-                while (name.startsWith("/") || name.startsWith("\\"))
-                    name = name.substring(1);
+                try {
+                    entry = get(entries.next());
+                } catch (FileNotFoundException fnfe) {
+                    // files in use can be removed while the backup is running
+                    if (!online) throw fnfe;
+                    
+                    logger.warn("Skipped " + source.getValue() + "; it was removed during the backup");
+                    continue;
+                }
                 
-                client.notifyProcessed();
-
-                addEntry(zipFileName + File.separator + name, filename);
+                addEntry(writer, source.getKey(), source.getValue(), entry, manifest);
+                client.notify(DcResources.getText("msgCreatingBackupOfFile", source.getValue().toString()));
+            }
+            
+            if (databaseBackup != null) {
+                databaseBackup.join();
                 
-                client.notify(DcResources.getText("msgCreatingBackupOfFile", filename));
+                if (databaseBackup.getError() != null)
+                    throw databaseBackup.getError();
                 
-                try {
-                    sleep(10);
-                } catch (Exception e) {
-                    logger.warn(e, e);
+                String target;
+                String name;
+                for (File file : databaseBackup.getFiles()) {
+                    target = new File(DcConfig.getInstance().getDatabaseDir(), file.getName()).toString();
+                    name = getEntryName(target);
+                    addEntry(writer, name, file, manifest.createEntry(name, file, previous != null ? previous.get(name) : null), manifest);
+                    client.notify(DcResources.getText("msgCreatingBackupOfFile", target));
                 }
             }
             
+            writer.flush();
+            removeSkipped(writer, manifest);
+            
+            addManifest(writer, manifest, previous);
+            
             client.notify(DcResources.getText("msgWritingBackupFile"));
             
-            TVFS.umount();
+            writer.close();
+            writer = null;
+            
+            manifest.save(new File(directory, _MANIFEST));
+            
+            if (previous != null)
+                logger.info("Incremental backup " + manifest.getArchive() + " is based on " + previous.getArchive());
+            
+            logger.info(duplicates + " images were stored once for multiple files, saving " + (saved / 1024) + " KB");
             
             client.notifyWarning(DcResources.getText("msgBackupFinished"));
             
         } catch (Exception e) {
+            if (writer != null) {
+                writer.abort();
+                new File(zipFileName).delete();
+            }
+            
             client.notify(DcResources.getText("msgBackupError", e.getMessage()));
             client.notifyError(e);
             client.notifyWarning(DcResources.getText("msgBackupFinishedUnsuccessful"));
             client.notify(DcResources.getText("msgBackupFinished"));
+        } finally {
+            hashing.shutdownNow();
+            blobs.clear();
+            
+            if (databaseBackup != null) {
+                // the database engine can still be writing to the temporary directory
+                try {
+                    databaseBackup.join();
+                } catch (InterruptedException ie) {
+                    logger.debug("Interrupted while waiting for the database backup", ie);
+                }
+                
+                databaseBackup.clear();
+            }
         }
         
         DcSettings.set(DcRepository.Settings.stBackupLocation, directory.toString());
         
-        client.notify(DcResources.getText("msgRestartingDb"));
+        if (!online) {
+            client.notify(DcResources.getText("msgRestartingDb"));
+            DatabaseManager.getInstance().initialize();
+        }
         
-        DatabaseManager.getInstance().initialize();
         client.notifyTaskCompleted(true, null);
         
         client = null;
         directory = null;
     }
+    
+    /**
+     * Backs up the database, in the background, to a temporary directory.
+     */
+    private static class DatabaseBackup extends Thread {
+        
+        private final File directory;
+        private Exception error;
+        
+        private DatabaseBackup(File directory) {
+            super("database-backup");
+            this.directory = directory;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                DatabaseManager.getInstance().backup(directory);
+            } catch (Exception e) {
+                logger.error("The database could not be backed up", e);
+                error = e;
+            }
+        }
+        
+        public Exception getError() {
+            return error;
+        }
+        
+        public File[] getFiles() {
+            File[] files = directory.listFiles();
+            return files != null ? files : new File[0];
+        }
+        
+        public void clear() {
+            for (File file : getFiles()) {
+                if (!file.delete())
+                    logger.debug("Could not delete temporary file " + file);
+            }
+            
+            directory.delete();
+        }
+    }
 }
@@ -0,0 +1,336 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.backup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The manifest describes the complete state of the backed up files at the time of a backup. 
+ * For each file the size, the last modified date, the SHA-256 hash of the content and the 
+ * archive holding the content are recorded. 
+ * 
+ * An incremental backup only stores the new and changed files; the unchanged files refer to 
+ * the archive of an earlier backup. The complete state can therefore be restored from the chain 
+ * of archives referred to by the manifest of the last backup.
+ * 
+ * Images are stored content addressed: the content is stored once per hash (see {@link #getBlobName(String, String)}) 
+ * no matter how many files share it, also across the archives of a chain of backups.
+ * 
+ * The manifest is stored as a text file; a line per file (hash, size, modified, archive, storage 
+ * and name separated by tabs) preceded by the header lines (starting with #). Manifests without
+ * the storage column only hold files stored under their own name.
+ */
+public class BackupManifest {
+    
+    public static final String _NAME = "manifest.txt";
+    public static final String _DELETED = "deleted.txt";
+    public static final String _BLOBS = "blobs/";
+    
+    private static final String _STORAGE_FILE = "file";
+    private static final String _STORAGE_BLOB = "blob";
+    
+    private static final String[] _IMAGES = {".jpg", ".jpeg", ".png", ".gif", ".bmp"};
+    
+    private static final String _ARCHIVE = "# archive=";
+    private static final String _BASE = "# base=";
+    
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+    
+    private String archive;
+    private String base;
+    
+    public BackupManifest(String archive) {
+        this.archive = archive;
+    }
+    
+    /**
+     * Loads a manifest from the given file.
+     * @return The manifest or null if the file does not exist.
+     */
+    public static BackupManifest load(File file) throws IOException {
+        if (!file.exists())
+            return null;
+        
+        InputStream is = new FileInputStream(file);
+        try {
+            return load(is);
+        } finally {
+            is.close();
+        }
+    }
+    
+    /**
+     * Loads a manifest from the given stream. The stream is not closed.
+     */
+    public static BackupManifest load(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        BackupManifest manifest = new BackupManifest(null);
+        
+        String line;
+        String[] values;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(_ARCHIVE)) {
+                manifest.archive = line.substring(_ARCHIVE.length());
+            } else if (line.startsWith(_BASE)) {
+                manifest.base = line.substring(_BASE.length());
+            } else if (line.length() > 0 && !line.startsWith("#")) {
+                values = line.split("\t", 6);
+                if (values.length == 6 && (values[4].equals(_STORAGE_FILE) || values[4].equals(_STORAGE_BLOB))) {
+                    manifest.entries.put(values[5], new Entry(
+                            values[0], Long.parseLong(values[1]), Long.parseLong(values[2]), values[3], values[4].equals(_STORAGE_BLOB)));
+                } else {
+                    values = line.split("\t", 5);
+                    if (values.length == 5) {
+                        manifest.entries.put(values[4], new Entry(
+                                values[0], Long.parseLong(values[1]), Long.parseLong(values[2]), values[3], false));
+                    }
+                }
+            }
+        }
+        
+        return manifest;
+    }
+    
+    /**
+     * Writes the manifest to the given file.
+     */
+    public void save(File file) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            save(os);
+        } finally {
+            os.close();
+        }
+    }
+    
+    /**
+     * Writes the manifest to the given stream. The stream is flushed, not closed.
+     */
+    public void save(OutputStream os) throws IOException {
+        Writer writer = new OutputStreamWriter(os, "UTF-8");
+        writer.write(_ARCHIVE + archive + "\n");
+        
+        if (base != null)
+            writer.write(_BASE + base + "\n");
+        
+        Entry entry;
+        for (String name : entries.keySet()) {
+            entry = entries.get(name);
+            writer.write(entry.getHash() + "\t" + entry.getSize() + "\t" + entry.getModified() + "\t" + 
+                         entry.getArchive() + "\t" + (entry.isBlob() ? _STORAGE_BLOB : _STORAGE_FILE) + "\t" + name + "\n");
+        }
+        
+        writer.flush();
+    }
+    
+    /**
+     * The archive created by the backup this manifest belongs to.
+     */
+    public String getArchive() {
+        return archive;
+    }
+    
+    /**
+     * The archive of the previous backup in case of an incremental backup.
+     */
+    public String getBase() {
+        return base;
+    }
+    
+    public void setBase(String base) {
+        this.base = base;
+    }
+    
+    public boolean isIncremental() {
+        return base != null;
+    }
+    
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+    
+    public void put(String name, Entry entry) {
+        entries.put(name, entry);
+    }
+    
+    public void remove(String name) {
+        entries.remove(name);
+    }
+    
+    public Collection<String> getNames() {
+        return entries.keySet();
+    }
+    
+    /**
+     * Indicates if the file should be stored content addressed.
+     * @param name The name of the file within the backup.
+     */
+    public static boolean isBlob(String name) {
+        String s = name.toLowerCase();
+        for (String extension : _IMAGES) {
+            if (s.endsWith(extension))
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * The name of the archive entry holding the content with the given hash.
+     * The extension of the file is kept.
+     * @param hash The hash of the content.
+     * @param name The name of a file having this content.
+     */
+    public static String getBlobName(String hash, String name) {
+        int idx = name.lastIndexOf('.');
+        return _BLOBS + hash.substring(0, 2) + "/" + hash + (idx > name.lastIndexOf('/') ? name.substring(idx).toLowerCase() : "");
+    }
+    
+    /**
+     * Creates the entry for the given file. The hash of the previous entry is reused 
+     * when the size and modified date are unchanged.
+     * @param name The name of the file within the backup.
+     * @param file The file.
+     * @param previous The entry of the previous backup (optional).
+     */
+    public Entry createEntry(String name, File file, Entry previous) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        boolean blob = isBlob(name);
+        
+        // the content can only be taken from the previous archive when stored the same way 
+        if (previous != null && previous.isBlob() != blob)
+            previous = null;
+        
+        if (previous != null && previous.getSize() == size && previous.getModified() == modified)
+            return new Entry(previous.getHash(), size, modified, previous.getArchive(), blob);
+        
+        String hash = hash(file);
+        String location = previous != null && previous.getHash().equals(hash) ? previous.getArchive() : archive;
+        return new Entry(hash, size, modified, location, blob);
+    }
+    
+    /**
+     * Calculates the SHA-256 hash of the content of the file.
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+        
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = is.read(buffer)) > 0)
+                digest.update(buffer, 0, read);
+        } finally {
+            is.close();
+        }
+        
+        StringBuffer sb = new StringBuffer();
+        for (byte b : digest.digest())
+            sb.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+        
+        return sb.toString();
+    }
+    
+    /**
+     * The recorded state of a single file.
+     */
+    public static class Entry {
+        
+        private final String hash;
+        private final long size;
+        private final long modified;
+        private final String archive;
+        private final boolean blob;
+        
+        public Entry(String hash, long size, long modified, String archive, boolean blob) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            this.archive = archive;
+            this.blob = blob;
+        }
+        
+        /**
+         * Creates a copy of this entry referring to the given archive.
+         */
+        public Entry copy(String archive) {
+            return new Entry(hash, size, modified, archive, blob);
+        }
+        
+        /**
+         * Indicates if the content is stored content addressed.
+         */
+        public boolean isBlob() {
+            return blob;
+        }
+        
+        /**
+         * The name of the archive entry holding the content of the given file.
+         */
+        public String getEntryName(String name) {
+            return blob ? getBlobName(hash, name) : name;
+        }
+        
+        public String getHash() {
+            return hash;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public long getModified() {
+            return modified;
+        }
+        
+        /**
+         * The name of the archive holding the content of the file.
+         */
+        public String getArchive() {
+            return archive;
+        }
+    }
+}
@@ -0,0 +1,621 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.backup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a zip archive to a single output stream. 
+ * 
+ * The entries are prepared on a pool of worker threads: files which are compressed 
+ * already (such as JPEG images) are stored as is, other files are compressed. The prepared 
+ * entries are written by the calling thread in the order in which they were added. Small 
+ * entries are prepared in memory; larger entries are compressed to a temporary file.
+ * 
+ * Archives larger than 4 GB or holding more than 65535 entries are written in the ZIP64 format.
+ * 
+ * Files which are in use can be skipped when they are removed or changed while being 
+ * archived, see {@link #setSkipChanged(boolean)}.
+ */
+public class BackupWriter {
+    
+    private static Logger logger = Logger.getLogger(BackupWriter.class.getName());
+    
+    private static final int _BUFFER_SIZE = 1024 * 1024;
+    private static final int _MEMORY_LIMIT = 4 * 1024 * 1024;
+    
+    private static final long _ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int _ZIP64_ENTRIES = 0xFFFF;
+    
+    private static final int _STORED = 0;
+    private static final int _DEFLATED = 8;
+    
+    private static final String[] _COMPRESSED = {
+        ".jpg", ".jpeg", ".png", ".gif", ".zip", ".jar", ".gz", ".mp3", ".avi", ".mkv", ".mp4"};
+    
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int window;
+    
+    private final LinkedList<Future<Entry>> pending = new LinkedList<Future<Entry>>();
+    private final List<Entry> written = new ArrayList<Entry>();
+    private final Collection<String> skipped = Collections.synchronizedList(new ArrayList<String>());
+    
+    private boolean skipChanged = false;
+    
+    private long offset = 0;
+    private long bytes = 0;
+    private long start = System.currentTimeMillis();
+    
+    /**
+     * @param file The archive to create.
+     * @param threads The number of threads preparing (compressing) the entries.
+     */
+    public BackupWriter(File file, int threads) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(file), _BUFFER_SIZE);
+        this.window = Math.max(2, threads * 2);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private int count = 0;
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "backup-writer-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Indicates whether files which are removed or changed while being archived are left out 
+     * of the archive instead of failing it. The names of these files are available through 
+     * {@link #getSkipped()}. Large files are copied before being archived when set.
+     */
+    public void setSkipChanged(boolean skipChanged) {
+        this.skipChanged = skipChanged;
+    }
+    
+    /**
+     * The names of the entries which were left out of the archive. 
+     * Complete after {@link #flush()} or {@link #close()}.
+     */
+    public Collection<String> getSkipped() {
+        return skipped;
+    }
+    
+    /**
+     * Adds a file to the archive.
+     * @param name The name within the archive.
+     * @param file The file.
+     */
+    public void add(final String name, final File file) throws IOException {
+        submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                try {
+                    return isCompressed(name) ? store(name, file) : deflate(name, file);
+                } catch (FileNotFoundException fnfe) {
+                    return skip(name, file, fnfe);
+                } catch (FileChangedException fce) {
+                    return skip(name, file, fce);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Adds the content to the archive.
+     * @param name The name within the archive.
+     * @param content The content.
+     */
+    public void add(final String name, final byte[] content) throws IOException {
+        submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                return deflate(name, content);
+            }
+        });
+    }
+    
+    /**
+     * Writes all entries added so far.
+     */
+    public void flush() throws IOException {
+        while (!pending.isEmpty())
+            write(next());
+    }
+    
+    /**
+     * Writes the remaining entries and the central directory and closes the archive.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+            finish();
+            
+            long millis = Math.max(1, System.currentTimeMillis() - start);
+            logger.info("Written " + written.size() + " entries, " + (offset / (1024 * 1024)) + " MB (" + 
+                        (bytes / (1024 * 1024)) + " MB uncompressed) in " + millis + "ms (" + 
+                        ((offset * 1000 / millis) / (1024 * 1024)) + " MB/s)");
+        } finally {
+            abort();
+        }
+    }
+    
+    /**
+     * Stops the workers and releases the resources without completing the archive.
+     */
+    public void abort() {
+        // the entries which have not been started will never be prepared
+        executor.shutdownNow();
+        
+        try {
+            // the entries being prepared are completed; their temporary files can then be removed
+            if (!executor.awaitTermination(60, TimeUnit.SECONDS))
+                logger.warn("The preparation of the remaining entries did not stop in time");
+        } catch (InterruptedException ie) {
+            logger.debug("Interrupted while waiting for the entries to be prepared", ie);
+        }
+        
+        for (Future<Entry> future : pending) {
+            if (!future.isDone()) continue;
+            
+            try {
+                Entry entry = future.get();
+                if (entry != null) entry.clear();
+            } catch (Exception e) {
+                logger.debug("Entry was not prepared", e);
+            }
+        }
+        
+        pending.clear();
+        
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            logger.debug("Could not close the archive", ioe);
+        }
+    }
+    
+    private void submit(Callable<Entry> task) throws IOException {
+        pending.add(executor.submit(task));
+        
+        // keeps the memory usage in check
+        while (pending.size() > window)
+            write(next());
+    }
+    
+    private Entry next() throws IOException {
+        try {
+            return pending.removeFirst().get();
+        } catch (ExecutionException ee) {
+            throw ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee.getCause());
+        } catch (InterruptedException ie) {
+            throw new IOException(ie);
+        }
+    }
+    
+    private Entry skip(String name, File file, IOException cause) throws IOException {
+        if (!skipChanged)
+            throw cause;
+        
+        logger.warn("Skipped " + file + "; it was removed or changed while being archived (" + cause.getMessage() + ")");
+        skipped.add(name);
+        return null;
+    }
+    
+    private boolean isCompressed(String name) {
+        String s = name.toLowerCase();
+        for (String extension : _COMPRESSED) {
+            if (s.endsWith(extension))
+                return true;
+        }
+        return false;
+    }
+    
+    private Entry store(String name, File file) throws IOException {
+        Entry entry = new Entry(name, _STORED, file.lastModified());
+        entry.size = file.length();
+        entry.compressedSize = entry.size;
+        
+        CRC32 crc = new CRC32();
+        InputStream is = new FileInputStream(file);
+        try {
+            if (entry.size <= _MEMORY_LIMIT) {
+                entry.data = read(is, (int) entry.size);
+                crc.update(entry.data);
+            } else if (skipChanged) {
+                // the file can change before it is written; the copy cannot
+                copy(entry, is, crc);
+            } else {
+                byte[] buffer = new byte[_BUFFER_SIZE];
+                int read;
+                while ((read = is.read(buffer)) > 0)
+                    crc.update(buffer, 0, read);
+
+                entry.file = file;
+            }
+        } finally {
+            is.close();
+        }
+        
+        entry.crc = crc.getValue();
+        return entry;
+    }
+    
+    private void copy(Entry entry, InputStream is, CRC32 crc) throws IOException {
+        entry.file = File.createTempFile("dc_backup_", ".tmp");
+        entry.temporary = true;
+        
+        long copied = 0;
+        boolean success = false;
+        OutputStream os = new FileOutputStream(entry.file);
+        try {
+            byte[] buffer = new byte[_BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                os.write(buffer, 0, read);
+                copied += read;
+            }
+            
+            if (copied != entry.size)
+                throw new FileChangedException("The file changed while being read");
+            
+            success = true;
+        } finally {
+            os.close();
+            
+            if (!success)
+                entry.clear();
+        }
+    }
+    
+    private Entry deflate(String name, File file) throws IOException {
+        if (file.length() <= _MEMORY_LIMIT) {
+            InputStream is = new FileInputStream(file);
+            try {
+                Entry entry = deflate(name, read(is, (int) file.length()));
+                entry.modified = file.lastModified();
+                return entry;
+            } finally {
+                is.close();
+            }
+        }
+        
+        Entry entry = new Entry(name, _DEFLATED, file.lastModified());
+        entry.file = File.createTempFile("dc_backup_", ".tmp");
+        entry.temporary = true;
+        
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        OutputStream os = null;
+        InputStream is = null;
+        boolean success = false;
+        try {
+            os = new DeflaterOutputStream(new FileOutputStream(entry.file), deflater, _BUFFER_SIZE);
+            is = new FileInputStream(file);
+            
+            byte[] buffer = new byte[_BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                os.write(buffer, 0, read);
+                entry.size += read;
+            }
+            
+            success = true;
+        } finally {
+            if (is != null) is.close();
+            if (os != null) os.close();
+            deflater.end();
+            
+            if (!success)
+                entry.clear();
+        }
+        
+        entry.crc = crc.getValue();
+        entry.compressedSize = entry.file.length();
+        return entry;
+    }
+    
+    private Entry deflate(String name, byte[] content) {
+        Entry entry = new Entry(name, _DEFLATED, System.currentTimeMillis());
+        
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(content);
+        deflater.finish();
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+        byte[] buffer = new byte[65536];
+        while (!deflater.finished())
+            bos.write(buffer, 0, deflater.deflate(buffer));
+        
+        deflater.end();
+        
+        entry.data = bos.toByteArray();
+        entry.crc = crc.getValue();
+        entry.size = content.length;
+        entry.compressedSize = entry.data.length;
+        return entry;
+    }
+    
+    private byte[] read(InputStream is, int size) throws IOException {
+        byte[] data = new byte[size];
+        int pos = 0;
+        int read;
+        while (pos < size && (read = is.read(data, pos, size - pos)) > 0)
+            pos += read;
+        
+        if (pos < size || is.read() != -1)
+            throw new FileChangedException("The file changed while being read");
+        
+        return data;
+    }
+    
+    private void write(Entry entry) throws IOException {
+        // skipped
+        if (entry == null) return;
+        
+        try {
+            entry.offset = offset;
+            
+            byte[] name = entry.name.getBytes("UTF-8");
+            boolean zip64 = entry.size >= _ZIP64_LIMIT || entry.compressedSize >= _ZIP64_LIMIT;
+            
+            writeInt(0x04034b50);
+            writeShort(zip64 ? 45 : 20);
+            writeShort(0x0800); // UTF-8 names
+            writeShort(entry.method);
+            writeInt(entry.getDosTime());
+            writeInt(entry.crc);
+            writeInt(zip64 ? _ZIP64_LIMIT : entry.compressedSize);
+            writeInt(zip64 ? _ZIP64_LIMIT : entry.size);
+            writeShort(name.length);
+            writeShort(zip64 ? 20 : 0);
+            write(name, 0, name.length);
+            
+            if (zip64) {
+                writeShort(0x0001);
+                writeShort(16);
+                writeLong(entry.size);
+                writeLong(entry.compressedSize);
+            }
+            
+            if (entry.data != null) {
+                write(entry.data, 0, entry.data.length);
+            } else {
+                long copied = 0;
+                InputStream is = new FileInputStream(entry.file);
+                try {
+                    byte[] buffer = new byte[_BUFFER_SIZE];
+                    int read;
+                    while (copied < entry.compressedSize && 
+                          (read = is.read(buffer, 0, (int) Math.min(buffer.length, entry.compressedSize - copied))) > 0) {
+                        write(buffer, 0, read);
+                        copied += read;
+                    }
+                } finally {
+                    is.close();
+                }
+                
+                if (copied < entry.compressedSize)
+                    throw new FileChangedException("File " + entry.file + " changed while being archived");
+            }
+            
+            bytes += entry.size;
+            written.add(entry);
+        } finally {
+            entry.clear();
+        }
+    }
+    
+    private void finish() throws IOException {
+        long directory = offset;
+        
+        byte[] name;
+        boolean zip64Size;
+        boolean zip64Offset;
+        int extra;
+        for (Entry entry : written) {
+            name = entry.name.getBytes("UTF-8");
+            zip64Size = entry.size >= _ZIP64_LIMIT || entry.compressedSize >= _ZIP64_LIMIT;
+            zip64Offset = entry.offset >= _ZIP64_LIMIT;
+            extra = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+            
+            writeInt(0x02014b50);
+            writeShort(45);
+            writeShort(zip64Size || zip64Offset ? 45 : 20);
+            writeShort(0x0800);
+            writeShort(entry.method);
+            writeInt(entry.getDosTime());
+            writeInt(entry.crc);
+            writeInt(zip64Size ? _ZIP64_LIMIT : entry.compressedSize);
+            writeInt(zip64Size ? _ZIP64_LIMIT : entry.size);
+            writeShort(name.length);
+            writeShort(extra > 0 ? extra + 4 : 0);
+            writeShort(0); // comment
+            writeShort(0); // disk
+            writeShort(0); // internal attributes
+            writeInt(0);   // external attributes
+            writeInt(zip64Offset ? _ZIP64_LIMIT : entry.offset);
+            write(name, 0, name.length);
+            
+            if (extra > 0) {
+                writeShort(0x0001);
+                writeShort(extra);
+                
+                if (zip64Size) {
+                    writeLong(entry.size);
+                    writeLong(entry.compressedSize);
+                }
+                
+                if (zip64Offset)
+                    writeLong(entry.offset);
+            }
+        }
+        
+        long size = offset - directory;
+        int count = written.size();
+        
+        if (count >= _ZIP64_ENTRIES || directory >= _ZIP64_LIMIT || size >= _ZIP64_LIMIT) {
+            long record = offset;
+            
+            writeInt(0x06064b50);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(size);
+            writeLong(directory);
+            
+            writeInt(0x07064b50);
+            writeInt(0);
+            writeLong(record);
+            writeInt(1);
+        }
+        
+        writeInt(0x06054b50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, _ZIP64_ENTRIES));
+        writeShort(Math.min(count, _ZIP64_ENTRIES));
+        writeInt(Math.min(size, _ZIP64_LIMIT));
+        writeInt(Math.min(directory, _ZIP64_LIMIT));
+        writeShort(0);
+        
+        out.flush();
+    }
+    
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        offset += len;
+    }
+    
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+        offset += 2;
+    }
+    
+    private void writeInt(long v) throws IOException {
+        writeShort((int) (v & 0xffff));
+        writeShort((int) ((v >>> 16) & 0xffff));
+    }
+    
+    private void writeLong(long v) throws IOException {
+        writeInt(v & 0xffffffffL);
+        writeInt(v >>> 32);
+    }
+    
+    private static class FileChangedException extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private FileChangedException(String message) {
+            super(message);
+        }
+    }
+    
+    private static class Entry {
+        
+        private final String name;
+        private final int method;
+        private long modified;
+        
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+        
+        private byte[] data;
+        private File file;
+        private boolean temporary = false;
+        
+        private Entry(String name, int method, long modified) {
+            this.name = name;
+            this.method = method;
+            this.modified = modified;
+        }
+        
+        private long getDosTime() {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(modified);
+            
+            int year = cal.get(Calendar.YEAR);
+            if (year < 1980)
+                return (1 << 21) | (1 << 16);
+            
+            return ((long) (year - 1980) << 25) | 
+                   ((long) (cal.get(Calendar.MONTH) + 1) << 21) |
+                   ((long) cal.get(Calendar.DAY_OF_MONTH) << 16) | 
+                   ((long) cal.get(Calendar.HOUR_OF_DAY) << 11) | 
+                   ((long) cal.get(Calendar.MINUTE) << 5) |
+                   ((long) cal.get(Calendar.SECOND) >> 1);
+        }
+        
+        private void clear() {
+            data = null;
+            
+            if (temporary && file != null && !file.delete())
+                file.deleteOnExit();
+            
+            file = null;
+        }
+    }
+}
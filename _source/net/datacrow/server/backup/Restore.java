@@ -27,11 +27,7 @@ package net.datacrow.server.backup;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
-import java.util.ArrayList;
-import java.util.List;
 
-import net.datacrow.core.DcConfig;
 import net.datacrow.core.Version;
 import net.datacrow.core.clients.IBackupRestoreClient;
 import net.datacrow.core.resources.DcResources;
@@ -39,13 +35,6 @@ import net.datacrow.server.db.DatabaseManager;
 
 import org.apache.log4j.Logger;
 
-import de.schlichtherle.truezip.file.TArchiveDetector;
-import de.schlichtherle.truezip.file.TFile;
-import de.schlichtherle.truezip.file.TFileReader;
-import de.schlichtherle.truezip.file.TVFS;
-import de.schlichtherle.truezip.fs.archive.zip.JarDriver;
-import de.schlichtherle.truezip.socket.sl.IOPoolLocator;
-
 /**
  * The restore class is capable of restoring a back up.
  * Based on the settings either the data, the modules, the modules or all
@@ -60,8 +49,7 @@ public class Restore extends Thread {
     private Version version;
     private File source;
     private IBackupRestoreClient client;
-    
-    private TArchiveDetector ad = new TArchiveDetector("zip", new JarDriver(IOPoolLocator.SINGLETON));
+    private RestoreSelection selection;
     
     /**
      * Creates a new instance.
@@ -80,8 +68,22 @@ public class Restore extends Thread {
         }
     }
     
-    private boolean isVersion(String filename) {
-        return filename.toLowerCase().endsWith("version.txt");
+    /**
+     * Restricts the restore to the selected files. By default the selection is based on the 
+     * settings of the client (databases, modules and reports).
+     */
+    public void setSelection(RestoreSelection selection) {
+        this.selection = selection;
+    }
+    
+    private RestoreSelection getSelection() {
+        if (selection == null) {
+            selection = new RestoreSelection();
+            selection.setDatabase(client.isRestoreDatabases());
+            selection.setModules(client.isRestoreModules());
+            selection.setReports(client.isRestoreReports());
+        }
+        return selection;
     }
     
     private void restartApplication() {
@@ -94,32 +96,12 @@ public class Restore extends Thread {
         boolean supported = false;
         
     	// This should only be executed server side, never remotely.
-        File entry = new TFile(source.toString() + File.separator + "version.txt", ad);
-        Reader reader = null;
         try {
-        	reader = new TFileReader(entry);
-        	
-            int data = reader.read();
-            StringBuffer sb = new StringBuffer();
-            while(data != -1){
-                sb.append((char) data);
-                data = reader.read();
-            }
-            
-            String s = sb.toString();
-            s = s.indexOf("\n") > -1 ? s.substring(0, s.indexOf("\n")) : s;
-            version = new Version(s);
+            String s = RestoreEngine.getVersion(source);
+            version = s != null ? new Version(s) : null;
         } catch (IOException e) {
         	logger.error(e, e);
         	client.notifyError(e);
-        } finally {
-            if (reader != null) {
-                try { 
-                    reader.close(); 
-                } catch (IOException e) {
-                    logger.debug("An error occured while closing resources", e);
-                }
-            }
         }
         
         if (version == null || version.isUndetermined()) {
@@ -142,138 +124,17 @@ public class Restore extends Thread {
         version = null;
         source = null;
         client = null;
-    }
-    
-    /**
-     * Returns the target file for the provided backup file entry.
-     */
-    private String getTargetFile(String filename) {
-        boolean restore = true;
-        if (    !client.isRestoreDatabases() && 
-               (filename.toLowerCase().startsWith("database/") ||
-                filename.toLowerCase().startsWith("database\\")  ||
-                filename.toLowerCase().indexOf("/mediaimages/") > -1 ||
-                filename.toLowerCase().indexOf("\\mediaimages\\") > -1)) {
-            restore = false;
-        } else if (
-                !client.isRestoreModules() && 
-               (filename.toLowerCase().startsWith("modules/") ||
-                filename.toLowerCase().startsWith("modules\\"))) {    
-            restore = false;
-        } else if (
-                !client.isRestoreReports() && 
-               (filename.toLowerCase().startsWith("reports/") ||
-                filename.toLowerCase().startsWith("reports\\") ))   {
-            restore = false;
-        } else if ( filename.toLowerCase().endsWith(".log") || 
-                    filename.toLowerCase().endsWith("version.properties") ||
-                    filename.toLowerCase().endsWith("log4j.properties") ||
-                    filename.toLowerCase().contains("datacrow.log")) {
-            restore = false;
-        }
-        
-        if (filename.toLowerCase().contains("wwwroot") && !filename.toLowerCase().contains("mediaimages")) {
-            restore = false;
-        }
-   
-        return restore ? new File(DcConfig.getInstance().getDataDir(), filename).toString() : null;
-    }  
-    
-    private List<TFile> getContent(TFile parent) {
-        List<TFile> files = new ArrayList<TFile>();
-
-        String name;
-        TFile jar;
-        for (TFile child : parent.listFiles()) {
-            
-            if (child.isArchive()) {
-                files.add(child);
-            } else if (child.isFile()) {
-                name = child.toString();
-                if (name.contains(".jar")) {
-                    jar = new TFile(name.substring(0, name.indexOf(".jar") + 4), ad);
-                    if (!files.contains(jar)) 
-                        files.add(jar);
-                } else {
-                    files.add(child);
-                }
-            } else if (child.isDirectory()) {
-                files.addAll(getContent(child));
-            }
-        }
-        
-        return files;
+        selection = null;
     }
     
     private boolean restore() throws Exception {
-        
-        boolean success = true;
-        
-        TFile zipFile = new TFile(source, ad);
-        List<TFile> entries = getContent(zipFile);
-        
-        client.notifyTaskStarted(entries.size());
         client.notify(DcResources.getText("msgStartRestore"));
         client.notify(DcResources.getText("msgClosingDb"));
         
         DatabaseManager.getInstance().closeDatabases(false);
 
-        String filename;
-        File destFile;
-        for (TFile entry : entries) {
-            
-            client.notifyProcessed();
-            
-            // the filename will contain the full zip file name and thus needs to be stripped
-            filename = entry.toString();
-            
-            if (filename.endsWith(".zip")) continue;
-            
-            filename = filename.substring(filename.indexOf(".zip") + 5);
-            
-            client.notify(DcResources.getText("msgRestoringFile", entry.getName()));
-            
-            try {                    
-                filename = getTargetFile(filename);
-                
-                if (filename == null) continue;
-                
-                if (isVersion(filename)) continue;
-                
-                destFile = new File(filename);
-                
-                if (destFile.exists()) destFile.delete();
-                if (destFile.exists()) 
-                    client.notify(DcResources.getText("msgRestoreFileOverwriteIssue", entry.getName()));
-                
-                try {
-                    destFile.getParentFile().mkdirs();
-                } catch (Exception e) {
-                    logger.warn("Unable to create directories for " + filename, e);
-                }
-                
-                if (entry.isArchive()) {
-                    entry.cp_rp(new TFile(destFile.toString() + "/", ad));
-                } else {
-                    entry.cp_rp(destFile);
-                }
-            
-                try {
-                    sleep(10);
-                } catch (Exception e) {
-                    logger.warn(e, e);
-                }
-                
-            } catch (Exception exp) {
-                success = false;
-                logger.error(exp, exp);
-                client.notify(DcResources.getText("msgRestoreFileError", new String[] {filename, exp.getMessage()}));
-            }
-        }
-        
-        TVFS.umount();
-        
-        return success;
+        RestoreEngine engine = new RestoreEngine(client, source, getSelection(), Runtime.getRuntime().availableProcessors());
+        return engine.restore();
     }
     
     /**
@@ -0,0 +1,355 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.backup;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import net.datacrow.core.clients.IBackupRestoreClient;
+import net.datacrow.core.resources.DcResources;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Restores the files of a backup archive. 
+ * 
+ * The files to restore are determined up front from the index of the archive: the manifest
+ * or, for backups created without a manifest, the central directory of the zip file. Only the 
+ * selected entries are read (see {@link RestoreSelection}); each of them once. The files are 
+ * written in parallel using large buffers. 
+ * 
+ * For incremental backups the files stored in the archives of the previous backups are read
+ * from these archives, which are expected to be located in the same directory. 
+ */
+public class RestoreEngine {
+    
+    private static Logger logger = Logger.getLogger(RestoreEngine.class.getName());
+    
+    private static final int _BUFFER_SIZE = 1024 * 1024;
+    
+    private final File source;
+    private final RestoreSelection selection;
+    private final IBackupRestoreClient client;
+    private final int threads;
+    
+    private final Map<String, ZipFile> archives = new HashMap<String, ZipFile>();
+    
+    /**
+     * @param client The listener which will be informed of the progress and errors (optional).
+     * @param source The archive.
+     * @param selection The files to restore.
+     * @param threads The number of threads writing the files.
+     */
+    public RestoreEngine(IBackupRestoreClient client, File source, RestoreSelection selection, int threads) {
+        this.client = client;
+        this.source = source;
+        this.selection = selection;
+        this.threads = Math.max(1, threads);
+    }
+    
+    /**
+     * Reads the first line of the version file of the archive.
+     * @return The version or null if it could not be found.
+     */
+    public static String getVersion(File source) throws IOException {
+        ZipFile zf = new ZipFile(source);
+        try {
+            ZipEntry entry = zf.getEntry("version.txt");
+            if (entry == null)
+                return null;
+            
+            BufferedReader reader = new BufferedReader(new InputStreamReader(zf.getInputStream(entry), "UTF-8"));
+            return reader.readLine();
+        } finally {
+            zf.close();
+        }
+    }
+    
+    /**
+     * Restores the selected files.
+     * @return False if one or more files could not be restored.
+     */
+    public boolean restore() throws IOException {
+        long start = System.currentTimeMillis();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ZipFile zf = getArchive(source.getName());
+            BackupManifest manifest = getManifest(zf);
+            
+            List<Task> tasks = manifest != null ? getTasks(manifest) : getTasks(zf);
+            
+            if (client != null)
+                client.notifyTaskStarted(tasks.size());
+            
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (Task task : tasks)
+                results.add(executor.submit(task));
+            
+            boolean success = true;
+            long bytes = 0;
+            for (int i = 0; i < results.size(); i++) {
+                if (get(results.get(i)))
+                    bytes += tasks.get(i).getSize();
+                else 
+                    success = false;
+            }
+            
+            if (manifest != null && manifest.isIncremental())
+                deleteFiles(manifest);
+            
+            long millis = Math.max(1, System.currentTimeMillis() - start);
+            logger.info("Restored " + tasks.size() + " files (" + (bytes / (1024 * 1024)) + " MB) from " + source + 
+                        " in " + millis + "ms");
+            
+            return success;
+        } finally {
+            executor.shutdownNow();
+            
+            for (ZipFile zf : archives.values()) {
+                try {
+                    zf.close();
+                } catch (IOException ioe) {
+                    logger.debug("Could not close " + zf.getName(), ioe);
+                }
+            }
+            archives.clear();
+        }
+    }
+    
+    /**
+     * The selected files based on the manifest. 
+     */
+    private List<Task> getTasks(BackupManifest manifest) throws IOException {
+        List<Task> tasks = new ArrayList<Task>();
+        
+        File target;
+        BackupManifest.Entry entry;
+        ZipFile zf;
+        ZipEntry ze;
+        for (String name : manifest.getNames()) {
+            target = selection.getTarget(name);
+            if (target == null) continue;
+            
+            entry = manifest.get(name);
+            zf = getArchive(entry.getArchive());
+            ze = zf.getEntry(entry.getEntryName(name));
+            
+            if (ze == null) {
+                logger.error("Entry " + entry.getEntryName(name) + " for " + name + " is missing from " + entry.getArchive());
+                notifyClient(DcResources.getText("msgRestoreFileError", new String[] {name, entry.getArchive()}));
+                continue;
+            }
+            
+            tasks.add(new Task(zf, ze, target, entry.getModified()));
+        }
+        
+        return tasks;
+    }
+    
+    /**
+     * The selected files based on the central directory of the archive.
+     */
+    private List<Task> getTasks(ZipFile zf) {
+        List<Task> tasks = new ArrayList<Task>();
+        
+        File target;
+        ZipEntry ze;
+        Enumeration<? extends ZipEntry> entries = zf.entries();
+        while (entries.hasMoreElements()) {
+            ze = entries.nextElement();
+            
+            if (ze.isDirectory()) continue;
+            
+            target = selection.getTarget(ze.getName());
+            if (target != null)
+                tasks.add(new Task(zf, ze, target, ze.getTime()));
+        }
+        
+        return tasks;
+    }
+    
+    private BackupManifest getManifest(ZipFile zf) throws IOException {
+        ZipEntry entry = zf.getEntry(BackupManifest._NAME);
+        
+        if (entry == null)
+            return null;
+        
+        InputStream is = zf.getInputStream(entry);
+        try {
+            return BackupManifest.load(is);
+        } finally {
+            is.close();
+        }
+    }
+    
+    /**
+     * Removes the files which have been deleted in the course of the incremental backups.
+     */
+    private void deleteFiles(BackupManifest manifest) throws IOException {
+        BackupManifest current = manifest;
+        
+        ZipFile zf;
+        ZipEntry ze;
+        BufferedReader reader;
+        String name;
+        File target;
+        while (current != null && current.isIncremental()) {
+            zf = getArchive(current.getArchive());
+            ze = zf.getEntry(BackupManifest._DELETED);
+            
+            if (ze != null) {
+                reader = new BufferedReader(new InputStreamReader(zf.getInputStream(ze), "UTF-8"));
+                try {
+                    while ((name = reader.readLine()) != null) {
+                        target = manifest.get(name) == null ? selection.getTarget(name) : null;
+                        if (target != null && target.exists() && !target.delete())
+                            logger.warn("Could not delete " + target + " which has been removed since the full backup");
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            
+            current = getManifest(getArchive(current.getBase()));
+        }
+    }
+    
+    private synchronized ZipFile getArchive(String name) throws IOException {
+        ZipFile zf = archives.get(name);
+        if (zf == null) {
+            File file = name.equals(source.getName()) ? source : new File(source.getParentFile(), name);
+            
+            if (!file.exists())
+                throw new IOException("Archive " + file + " of a previous backup is missing; it is needed to restore " + source);
+            
+            zf = new ZipFile(file);
+            archives.put(name, zf);
+        }
+        return zf;
+    }
+    
+    private boolean get(Future<Boolean> future) throws IOException {
+        try {
+            return future.get().booleanValue();
+        } catch (ExecutionException ee) {
+            throw new IOException(ee.getCause());
+        } catch (InterruptedException ie) {
+            throw new IOException(ie);
+        }
+    }
+    
+    private void notifyClient(String message) {
+        if (client != null) {
+            synchronized (client) {
+                client.notify(message);
+            }
+        }
+    }
+    
+    private void notifyProcessed() {
+        if (client != null) {
+            synchronized (client) {
+                client.notifyProcessed();
+            }
+        }
+    }
+    
+    /**
+     * Writes a single file.
+     */
+    private class Task implements Callable<Boolean> {
+        
+        private final ZipFile zf;
+        private final ZipEntry entry;
+        private final File target;
+        private final long modified;
+        
+        private Task(ZipFile zf, ZipEntry entry, File target, long modified) {
+            this.zf = zf;
+            this.entry = entry;
+            this.target = target;
+            this.modified = modified;
+        }
+        
+        public long getSize() {
+            return Math.max(0, entry.getSize());
+        }
+        
+        @Override
+        public Boolean call() {
+            notifyProcessed();
+            notifyClient(DcResources.getText("msgRestoringFile", entry.getName()));
+            
+            try {
+                if (target.exists() && !target.delete())
+                    RestoreEngine.this.notifyClient(DcResources.getText("msgRestoreFileOverwriteIssue", target.getName()));
+                
+                target.getParentFile().mkdirs();
+                
+                InputStream is = zf.getInputStream(entry);
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(target), _BUFFER_SIZE);
+                try {
+                    byte[] buffer = new byte[_BUFFER_SIZE];
+                    int read;
+                    while ((read = is.read(buffer)) > 0)
+                        os.write(buffer, 0, read);
+                } finally {
+                    is.close();
+                    os.close();
+                }
+                
+                // keeps the manifest of the next incremental backup valid
+                if (modified > 0)
+                    target.setLastModified(modified);
+                
+                return Boolean.TRUE;
+            } catch (IOException ioe) {
+                logger.error("Could not restore " + target, ioe);
+                RestoreEngine.this.notifyClient(DcResources.getText("msgRestoreFileError", new String[] {target.toString(), ioe.getMessage()}));
+                return Boolean.FALSE;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.backup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import net.datacrow.core.DcConfig;
+
+/**
+ * Determines which files of a backup are restored and where to. The files are selected by
+ * the directory they belong to: the database, the modules (all or only the selected ones), 
+ * the reports, the images and the remaining files (settings and resources). 
+ * 
+ * Log files and the installation specific files are never restored.
+ */
+public class RestoreSelection {
+    
+    private boolean database = true;
+    private boolean modules = true;
+    private boolean reports = true;
+    private boolean images = true;
+    private boolean other = true;
+    
+    private final Collection<String> moduleNames = new ArrayList<String>();
+    
+    private final String databaseDir;
+    private final String moduleDir;
+    private final String reportDir;
+    private final String imageDir;
+    
+    public RestoreSelection() {
+        databaseDir = getRelativeDir(DcConfig.getInstance().getDatabaseDir());
+        moduleDir = getRelativeDir(DcConfig.getInstance().getModuleDir());
+        reportDir = getRelativeDir(DcConfig.getInstance().getReportDir());
+        imageDir = getRelativeDir(DcConfig.getInstance().getImageDir());
+    }
+    
+    /**
+     * Creates a selection holding nothing. 
+     */
+    public static RestoreSelection none() {
+        RestoreSelection selection = new RestoreSelection();
+        selection.setDatabase(false);
+        selection.setModules(false);
+        selection.setReports(false);
+        selection.setImages(false);
+        selection.setOther(false);
+        return selection;
+    }
+
+    public void setDatabase(boolean database) {
+        this.database = database;
+    }
+
+    public void setModules(boolean modules) {
+        this.modules = modules;
+    }
+    
+    /**
+     * Restricts the module files to be restored to the given modules.
+     * @param name The (file) name of a module.
+     */
+    public void addModule(String name) {
+        modules = true;
+        moduleNames.add(name.toLowerCase());
+    }
+
+    public void setReports(boolean reports) {
+        this.reports = reports;
+    }
+
+    public void setImages(boolean images) {
+        this.images = images;
+    }
+
+    /**
+     * Indicates if the files not belonging to the database, modules, reports or 
+     * images (the settings and resources) are restored.
+     */
+    public void setOther(boolean other) {
+        this.other = other;
+    }
+    
+    /**
+     * Returns the target file for the provided backup file entry.
+     * @param name The name of the file within the backup.
+     * @return The target or null when the file is not part of the selection.
+     */
+    public File getTarget(String name) {
+        String s = name.replace('\\', '/').toLowerCase();
+        
+        if (    s.endsWith(".log") || 
+                s.endsWith("version.properties") ||
+                s.endsWith("log4j.properties") ||
+                s.contains("datacrow.log") ||
+                s.equals("version.txt") ||
+                s.equals(BackupManifest._NAME) ||
+                s.equals(BackupManifest._DELETED) ||
+                s.startsWith(BackupManifest._BLOBS) ||
+                s.endsWith("/")) {
+            return null;
+        }
+        
+        if (s.contains("wwwroot") && !s.contains("mediaimages"))
+            return null;
+        
+        boolean restore;
+        if (s.startsWith("database/") || is(s, databaseDir) || s.contains("/mediaimages/")) {
+            restore = database;
+        } else if (s.startsWith("modules/") || is(s, moduleDir)) {
+            restore = modules && isSelectedModule(s.substring(s.indexOf('/') + 1));
+        } else if (s.startsWith("reports/") || is(s, reportDir)) {
+            restore = reports;
+        } else if (is(s, imageDir)) {
+            restore = images;
+        } else {
+            restore = other;
+        }
+        
+        return restore ? new File(DcConfig.getInstance().getDataDir(), name) : null;
+    }
+    
+    private boolean isSelectedModule(String filename) {
+        if (moduleNames.isEmpty())
+            return true;
+        
+        for (String module : moduleNames) {
+            if (filename.startsWith(module))
+                return true;
+        }
+        return false;
+    }
+    
+    private boolean is(String name, String dir) {
+        return dir != null && name.startsWith(dir);
+    }
+    
+    /**
+     * The directory relative to the data directory, lower case and ending with a slash.
+     */
+    private String getRelativeDir(String dir) {
+        String dataDir = new File(DcConfig.getInstance().getDataDir()).getAbsolutePath();
+        String path = new File(dir).getAbsolutePath();
+        
+        if (!path.startsWith(dataDir) || path.length() == dataDir.length())
+            return null;
+        
+        path = path.substring(dataDir.length()).replace('\\', '/');
+        while (path.startsWith("/"))
+            path = path.substring(1);
+        
+        return path.toLowerCase() + "/";
+    }
+}
@@ -0,0 +1,419 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.data;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import net.datacrow.core.DcRepository;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcField;
+import net.datacrow.core.objects.DcMapping;
+import net.datacrow.core.objects.DcObject;
+import net.datacrow.core.security.SecuredUser;
+import net.datacrow.server.db.DatabaseManager;
+import net.datacrow.server.db.ModuleVersions;
+import net.datacrow.server.db.ModuleVersions.Snapshot;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the item counts per module, field and value as used by {@link DataManager#getCount(SecuredUser, int, int, Object)}.
+ * The counts do not depend on the user; they are shared by all users.
+ * 
+ * The counts of a field are built with a single grouped query, after which all values of 
+ * that field are served from memory. Every write to the involved modules moves on their 
+ * version (see {@link ModuleVersions}) and invalidates the counts of the field. As the grouped 
+ * query is more expensive than counting a single value, the counts are only rebuilt once the 
+ * field has been requested {@link #_MIN_REQUESTS} times since the last change; until then 
+ * -1 is returned and the value is to be counted directly. Counts are reconciled with the 
+ * database at least every {@link #_MAX_AGE} milliseconds. When the counts could not be built
+ * the requests are counted anew, after which building them is retried.
+ * 
+ * Text values are only served for columns using the default collation, with or without 
+ * ignoring the case. Case and trailing spaces are then ignored exactly when the database 
+ * ignores them. Columns with any other collation (such as a language collation) are always 
+ * counted by the database.
+ * 
+ * The cache holds at most {@link #_MAX_ENTRIES} fields of at most {@link #_MAX_VALUES} values.
+ * A field with more values is counted by the database until the next change or until
+ * {@link #_MAX_AGE} has passed, after which building the counts is tried again.
+ */
+public class CountCache {
+
+    private static Logger logger = Logger.getLogger(CountCache.class.getName());
+    
+    private static final long _MAX_AGE = 10 * 60 * 1000;
+    private static final int _MIN_REQUESTS = 3;
+    private static final int _MAX_ENTRIES = 100;
+    private static final int _MAX_VALUES = 10000;
+    
+    private static final String _NULL = "\u0000";
+    
+    // the collations of which the comparison can be repeated in Java
+    private static final String _COLLATION_CASE = "SQL_TEXT";
+    private static final String _COLLATION_IGNORE_CASE = "SQL_TEXT_UCC";
+    
+    private static CountCache instance = new CountCache();
+    
+    private final Map<String, Counts> counts = new LinkedHashMap<String, Counts>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Counts> eldest) {
+            return size() > _MAX_ENTRIES;
+        }
+    };
+    
+    private CountCache() {}
+    
+    /**
+     * Retrieves the sole instance of this class
+     */
+    public static CountCache getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Retrieves the count for the specified field value.
+     * @param su The user on behalf of whom the counts are built.
+     * @param module The module index.
+     * @param field The field index or -1 to count all items of the module.
+     * @param value The value; null to count the items without a value. Ignored when all
+     * items of the module are counted.
+     * @return The count or -1 when the count could not be served from the cache. 
+     */
+    public int getCount(SecuredUser su, int module, int field, Object value) {
+        DcModule m = DcModules.get(module);
+        DcField f = field > 0 ? m.getField(field) : null;
+        
+        if (f != null && !isSupported(value))
+            return -1;
+        
+        Object v = f == null ? null : value;
+        String key = module + "/" + (f == null ? -1 : field);
+        
+        Counts c;
+        synchronized (counts) {
+            c = counts.get(key);
+            
+            if (c == null || !c.isCurrent()) {
+                // start counting the requests made since the last change
+                c = new Counts(ModuleVersions.getInstance().getSnapshot(m.getIndex()));
+                counts.put(key, c);
+            }
+            
+            if (c.isBuilt())
+                return c.get(v);
+            
+            // the counts are being built or cannot be cached (until the next change)
+            if (c.isBuilding() || !c.isCacheable())
+                return -1;
+            
+            // counting all items is as expensive as the query it replaces 
+            if (f != null && c.request() < _MIN_REQUESTS)
+                return -1;
+            
+            c.setBuilding();
+        }
+        
+        Counts built = build(su, m, f, c.getSnapshot());
+        
+        synchronized (counts) {
+            if (built != null)
+                counts.put(key, built);
+            else if (counts.get(key) == c)
+                // the requests are counted anew, after which the counts are built again
+                counts.remove(key);
+        }
+        
+        return built != null && built.isBuilt() ? built.get(v) : -1;
+    }
+    
+    /**
+     * Removes all counts.
+     */
+    public void clear() {
+        synchronized (counts) {
+            counts.clear();
+        }
+    }
+    
+    /**
+     * Builds the counts of the field. 
+     * @param snapshot The versions of the modules taken before the query is executed.
+     * @return The counts, marked as not cacheable if the field holds too many distinct values
+     * or text compared in a way which cannot be repeated. Null if these could not be built.
+     */
+    private Counts build(SecuredUser su, DcModule m, DcField f, Snapshot snapshot) {
+        Counts c = new Counts(snapshot);
+        
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = DatabaseManager.getInstance().getConnection(su).createStatement();
+            
+            if (f == null) {
+                rs = stmt.executeQuery("select count(*) from " + m.getTableName());
+                while (rs.next())
+                    c.put(null, rs.getInt(1));
+            } else if (f.getValueType() != DcRepository.ValueTypes._DCOBJECTCOLLECTION) {
+                String column = f.getDatabaseFieldName();
+                
+                if (probe(stmt, c, m.getTableName(), column)) {
+                    rs = stmt.executeQuery("select " + column + ", count(*) from " + m.getTableName() + " group by " + column);
+                    while (rs.next())
+                        c.put(rs.getObject(1), rs.getInt(2));
+                }
+            } else {
+                DcModule mapping = DcModules.get(DcModules.getMappingModIdx(m.getIndex(), f.getReferenceIdx(), f.getIndex()));
+                String referenced = mapping.getField(DcMapping._B_REFERENCED_ID).getDatabaseFieldName();
+                String parent = mapping.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName();
+                
+                if (probe(stmt, c, mapping.getTableName(), referenced)) {
+                    rs = stmt.executeQuery("select " + referenced + ", count(*) from " + mapping.getTableName() + " group by " + referenced);
+                    while (rs.next())
+                        c.put(rs.getObject(1), rs.getInt(2));
+                
+                    rs.close();
+                
+                    rs = stmt.executeQuery("select count(*) from " + m.getTableName() + " MAINTABLE where not exists (select " +
+                            parent + " from " + mapping.getTableName() + " where " + parent + " = MAINTABLE.ID)");
+                    while (rs.next())
+                        c.put(null, rs.getInt(1));
+                }
+            }
+            
+        } catch (SQLException se) {
+            logger.error("Could not build the counts for module " + m.getTableName() + 
+                    (f == null ? "" : ", field " + f.getDatabaseFieldName()), se);
+            c = null;
+        } finally {
+            try {
+                if (rs != null) rs.close();
+                if (stmt != null) stmt.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close database resources", se);
+            }
+        }
+        
+        if (c != null && c.size() > _MAX_VALUES) {
+            logger.debug("The counts of module " + m.getTableName() + (f == null ? "" : ", field " + f.getDatabaseFieldName()) + 
+                         " hold too many values to be cached");
+            c.setNotCacheable();
+        }
+        
+        if (c != null && c.isCacheable())
+            c.setBuilt();
+        
+        return c;
+    }
+    
+    /**
+     * Determines how the values of a text column are compared by the database.
+     * @return False when the values cannot be compared the same way; the counts are then
+     * marked as not cacheable.
+     */
+    private boolean probe(Statement stmt, Counts c, String table, String column) throws SQLException {
+        // only character columns have a collation
+        String collation = null;
+        ResultSet rs = stmt.executeQuery(
+                "select COLLATION_NAME from INFORMATION_SCHEMA.COLUMNS where TABLE_NAME = '" +
+                table.toUpperCase() + "' and COLUMN_NAME = '" + column.toUpperCase() + "'");
+        try {
+            while (rs.next())
+                collation = rs.getString(1);
+        } finally {
+            rs.close();
+        }
+        
+        if (collation == null)
+            return true;
+        
+        if (!_COLLATION_CASE.equals(collation) && !_COLLATION_IGNORE_CASE.equals(collation)) {
+            c.setNotCacheable();
+            return false;
+        }
+        
+        // trailing spaces are ignored unless the collation is set to NO PAD
+        rs = stmt.executeQuery("select COALESCE(T." + column + ", 'a') = 'a ' from (values(0)) X left join " + table + " T on 1 = 0");
+        try {
+            while (rs.next())
+                c.setText(_COLLATION_IGNORE_CASE.equals(collation), rs.getBoolean(1));
+        } finally {
+            rs.close();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Indicates if values of this type can be served from the cache.
+     */
+    private boolean isSupported(Object value) {
+        return value == null || value instanceof DcObject || value instanceof Number ||
+               value instanceof Boolean || value instanceof String;
+    }
+    
+    private static class Counts {
+        
+        private final Snapshot snapshot;
+        private final long created = System.currentTimeMillis();
+        private final Map<String, Integer> values = new HashMap<String, Integer>();
+        
+        private int requests = 0;
+        private boolean building = false;
+        private boolean built = false;
+        private boolean cacheable = true;
+        
+        // the comparison of the values of a text column
+        private boolean text = false;
+        private boolean ignoreCase = false;
+        private boolean padSpace = false;
+        
+        private Counts(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+        
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+        
+        /**
+         * Registers a request for a count which could not be served.
+         * @return The number of requests so far.
+         */
+        private int request() {
+            return ++requests;
+        }
+        
+        private void setBuilding() {
+            building = true;
+        }
+        
+        public boolean isBuilding() {
+            return building;
+        }
+        
+        private void setBuilt() {
+            built = true;
+        }
+        
+        public boolean isBuilt() {
+            return built;
+        }
+        
+        private void setNotCacheable() {
+            values.clear();
+            cacheable = false;
+        }
+        
+        public boolean isCacheable() {
+            return cacheable;
+        }
+        
+        private void setText(boolean ignoreCase, boolean padSpace) {
+            this.text = true;
+            this.ignoreCase = ignoreCase;
+            this.padSpace = padSpace;
+        }
+        
+        public int size() {
+            return values.size();
+        }
+        
+        private void put(Object value, int count) {
+            String key = getKey(value);
+            if (key == null) return;
+            
+            Integer current = values.get(key);
+            values.put(key, Integer.valueOf(current == null ? count : current.intValue() + count));
+        }
+        
+        /**
+         * @return The count of the value or -1 when the value cannot be served.
+         */
+        public int get(Object value) {
+            String key = getKey(value);
+            
+            if (key == null)
+                return -1;
+            
+            Integer count = values.get(key);
+            return count == null ? 0 : count.intValue();
+        }
+        
+        /**
+         * Converts the value to the form in which the counts are stored.
+         * @return The normalized value or null when the value cannot be compared the way
+         * the database compares it to the values of the column.
+         */
+        private String getKey(Object value) {
+            if (value == null)
+                return _NULL;
+            
+            if (text) {
+                String s = value instanceof DcObject ? ((DcObject) value).getID() :
+                           value instanceof String ? (String) value : null;
+                
+                if (s == null)
+                    return null;
+                
+                if (padSpace) {
+                    int length = s.length();
+                    while (length > 0 && s.charAt(length - 1) == ' ')
+                        length--;
+                    s = s.substring(0, length);
+                }
+                
+                return ignoreCase ? s.toUpperCase(Locale.ENGLISH) : s;
+            } else if (value instanceof DcObject) {
+                return ((DcObject) value).getID();
+            } else if (value instanceof Number) {
+                try {
+                    return new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+                } catch (NumberFormatException nfe) {
+                    return null;
+                }
+            } else if (value instanceof Boolean) {
+                return value.toString();
+            } else {
+                return null;
+            }
+        }
+        
+        public boolean isCurrent() {
+            return snapshot.isCurrent() && System.currentTimeMillis() - created < _MAX_AGE;
+        }
+    }
+}
@@ -32,6 +32,8 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -51,6 +53,7 @@ import net.datacrow.core.objects.DcSimpleValue;
 import net.datacrow.core.objects.helpers.ExternalReference;
 import net.datacrow.core.objects.helpers.Media;
 import net.datacrow.core.security.SecuredUser;
+import net.datacrow.core.utilities.Base64;
 import net.datacrow.core.utilities.CoreUtilities;
 import net.datacrow.server.db.DatabaseManager;
 import net.datacrow.server.db.SelectQuery;
@@ -74,7 +77,12 @@ public class DataManager {
     }
     
     public int getCount(SecuredUser su, int module, int field, Object value) {
-        int count = 0;
+        int count = CountCache.getInstance().getCount(su, module, field, value);
+        
+        if (count > -1)
+            return count;
+        
+        count = 0;
         
         ResultSet rs = null;
         PreparedStatement ps = null;
@@ -125,32 +133,91 @@ public class DataManager {
 
 
     
+    /**
+     * Retrieves all items referencing the specified item. One query is executed per referencing
+     * module; the conditions for all its referencing fields (including the multi-reference 
+     * fields) are combined into this single query. 
+     * @param moduleIdx The module of the referenced item.
+     * @param ID The ID of the referenced item.
+     */
     public List<DcObject> getReferencingItems(SecuredUser su, int moduleIdx, String ID) {
-        List<DcObject> items = new ArrayList<DcObject>();
+        Map<String, DcObject> items = new LinkedHashMap<String, DcObject>();
         
-        DataFilter df;
+        String key;
         for (DcModule module : DcModules.getActualReferencingModules(moduleIdx)) {
             if ( module.getIndex() != moduleIdx && 
                  module.getType() != DcModule._TYPE_MAPPING_MODULE &&   
                  module.getType() != DcModule._TYPE_TEMPLATE_MODULE) {
                 
-                for (DcField field : module.getFields()) {
-                    if (field.getReferenceIdx() == moduleIdx) {
-                        df = new DataFilter(module.getIndex());
-                        df.addEntry(new DataFilterEntry(DataFilterEntry._AND, module.getIndex(), field.getIndex(), Operator.EQUAL_TO, ID));
-                        
-                        for (DcObject dco : getItems(su, df, module.getMinimalFields(null))) {
-                            if (!items.contains(dco))
-                                items.add(dco);
-                        }
-                    }
+                for (DcObject dco : getReferencingItems(su, module, moduleIdx, ID)) {
+                    key = module.getIndex() + "/" + dco.getID();
+                    if (!items.containsKey(key))
+                        items.put(key, dco);
                 }
             }
         }  
         
-        return items;
+        return new ArrayList<DcObject>(items.values());
     }    
     
+    private List<DcObject> getReferencingItems(SecuredUser su, DcModule module, int moduleIdx, String ID) {
+        Collection<String> conditions = new ArrayList<String>();
+        
+        DcModule mappingMod;
+        for (DcField field : module.getFields()) {
+            if (field.getReferenceIdx() != moduleIdx) 
+                continue;
+            
+            if (field.getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION) {
+                mappingMod = DcModules.get(DcModules.getMappingModIdx(field.getModule(), field.getReferenceIdx(), field.getIndex()));
+                conditions.add("ID IN (SELECT " + mappingMod.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName() + 
+                               " FROM " + mappingMod.getTableName() + " WHERE " + 
+                               mappingMod.getField(DcMapping._B_REFERENCED_ID).getDatabaseFieldName() + " = ?)");
+            } else if (!field.isUiOnly()) {
+                conditions.add(field.getDatabaseFieldName() + " = ?");
+            }
+        }
+        
+        if (conditions.size() == 0)
+            return new ArrayList<DcObject>();
+        
+        int[] fields = module.getMinimalFields(null);
+        
+        String columns = module.getIndex() + " AS MODULEIDX, ID";
+        DcField field;
+        for (int idx : fields) {
+            field = module.getField(idx);
+            if (field != null && !field.isUiOnly() && idx != DcObject._ID)
+                columns += ", " + field.getDatabaseFieldName();
+        }
+        
+        String sql = "SELECT " + columns + " FROM " + module.getTableName() + " WHERE ";
+        int count = 0;
+        for (String condition : conditions)
+            sql += (count++ > 0 ? " OR " : "") + condition;
+        
+        List<DcObject> items = new ArrayList<DcObject>();
+        PreparedStatement ps = null;
+        try {
+            ps = DatabaseManager.getInstance().getConnection(su).prepareStatement(sql);
+            
+            for (int i = 1; i <= conditions.size(); i++)
+                ps.setString(i, ID);
+            
+            items.addAll(convert(su, ps.executeQuery(), fields));
+        } catch (SQLException se) {
+            logger.error("Error while retrieving the items of " + module + " referencing " + ID + ": " + sql, se);
+        } finally {
+            try {
+                if (ps != null) ps.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close database resources", se);
+            }
+        }
+        
+        return items;
+    }
+    
     public DcObject getItemByExternalID(SecuredUser su, int moduleIdx, String type, String externalID) {
         DcModule module =  DcModules.get(moduleIdx);
        
@@ -357,8 +424,11 @@ public class DataManager {
     public List<DcSimpleValue> getSimpleValues(SecuredUser su, int module, boolean icons) {
         DcModule m = DcModules.get(module);
         boolean useIcons = icons && m.getIconField() != null;
+        String iconColumn = useIcons ? m.getIconField().getDatabaseFieldName() : null;
+        
+        // the icons are not selected; these are read from the image folder (see IconCache)
         String sql = "select ID, " + m.getField(m.getDisplayFieldIdx()).getDatabaseFieldName() + 
-                      (useIcons ? ", " + m.getIconField().getDatabaseFieldName() : " ") +  
+                      (useIcons ? ", CASE WHEN " + iconColumn + " IS NOT NULL AND LENGTH(" + iconColumn + ") > 0 THEN 1 ELSE 0 END" : " ") +  
                      " from " + m.getTableName() +
                      " order by 2";
 
@@ -367,17 +437,17 @@ public class DataManager {
         ResultSet rs = null;
         try {
             rs = DatabaseManager.getInstance().executeSQL(su, sql);
+            IconCache cache = IconCache.getInstance();
             DcImageIcon icon; 
             DcSimpleValue sv;
-            String s;
+            String ID;
             while (rs.next()) {
-                sv = new DcSimpleValue(rs.getString(1), rs.getString(2));
-                if (useIcons) {
-                    s = rs.getString(3);
-                    if (!CoreUtilities.isEmpty(s)) {
-                        icon = CoreUtilities.base64ToImage(s);
-                        sv.setIcon(icon);
-                    }
+                ID = rs.getString(1);
+                sv = new DcSimpleValue(ID, rs.getString(2));
+                if (useIcons && rs.getInt(3) == 1) {
+                    icon = cache.getIcon(ID);
+                    icon = icon == null ? restoreIcon(su, m, ID) : icon;
+                    sv.setIcon(icon);
                 }
                 values.add(sv);
             }
@@ -393,6 +463,42 @@ public class DataManager {
         return values;
     }
     
+    /**
+     * Writes the icon, stored in the database, to the image folder.
+     * Only needed when the icon file has gone missing.
+     * @return The decoded icon or null if it could not be retrieved.
+     */
+    private DcImageIcon restoreIcon(SecuredUser su, DcModule m, String ID) {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        DcImageIcon icon = null;
+        
+        try {
+            ps = DatabaseManager.getInstance().getConnection(su).prepareStatement(
+                    "select " + m.getIconField().getDatabaseFieldName() + " from " + m.getTableName() + " where ID = ?");
+            ps.setString(1, ID);
+            rs = ps.executeQuery();
+            
+            String s = rs.next() ? rs.getString(1) : null;
+            if (!CoreUtilities.isEmpty(s)) {
+                byte[] bytes = Base64.decode(s.toCharArray());
+                CoreUtilities.writeToFile(bytes, IconCache.getInstance().getFile(ID));
+                icon = new DcImageIcon(bytes);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not restore icon for " + ID, e);
+        } finally {
+            try {
+                if (rs != null) rs.close();
+                if (ps != null) ps.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close database resources", se);
+            }
+        }
+        
+        return icon;
+    }
+    
     /**
      * Retrieve items using the specified data filter.
      * @see DataFilter
@@ -412,11 +518,24 @@ public class DataManager {
     }
     
     /**
-     * Converts the result set to a collection of items.
+     * Converts the result set to a collection of items. The additional information of the items
+     * is not prefetched (see {@link #convert(SecuredUser, ResultSet, int[])}).
+     * @param rs An unclosed SQL result set.
+     * @return Collection of items.
+     */
+    public List<DcObject> convert(ResultSet rs, int[] requestedFields) {
+        return convert(null, rs, requestedFields);
+    }
+    
+    /**
+     * Converts the result set to a collection of items. The columns are mapped to the fields
+     * once per module (see {@link ResultSetMapping}) after which the rows are read by ordinal.
+     * @param su The user on whose behalf the additional information of the items is prefetched 
+     * (see {@link Prefetch}) or null to load this information per item.
 	 * @param rs An unclosed SQL result set.
 	 * @return Collection of items.
 	 */
-	public List<DcObject> convert(ResultSet rs, int[] requestedFields) {
+	public List<DcObject> convert(SecuredUser su, ResultSet rs, int[] requestedFields) {
 		List<DcObject> objects = new ArrayList<DcObject>();
 
 		try {
@@ -427,47 +546,60 @@ public class DataManager {
 
 		try {
 			ResultSetMetaData md = rs.getMetaData();
-
-			int fieldStart = 1;
-			int[] fields = null;
+			
+			// the module index column is always the first column, when present
+			boolean hasModuleIdx = 
+			        md.getColumnCount() > 0 &&
+			       ("MODULEIDX".equalsIgnoreCase(md.getColumnLabel(1)) || 
+			        "MODULEIDX".equalsIgnoreCase(md.getColumnName(1)));
+
+			Map<Integer, ResultSetMapping> mappings = new HashMap<Integer, ResultSetMapping>();
+			Map<ResultSetMapping, List<DcObject>> converted = new LinkedHashMap<ResultSetMapping, List<DcObject>>();
+			ResultSetMapping mapping = null;
+			DcModule module;
 			DcObject dco;
-			DcModule module = null;
+			int moduleIdx;
 			while (rs.next()) {
-				try {
-					int moduleIdx = rs.getInt("MODULEIDX");
-					module = DcModules.get(moduleIdx);
-					fieldStart = 2;
-				} catch (Exception e) {
-					module = DcModules.get(md.getTableName(1));
-				}
-				
-				if (module == null) {
-				    logger.fatal("Could not find module for " + md.getTableName(1));
-				    continue;
-				}
-
-				if (fields == null) {
-					fields = new int[md.getColumnCount() - (fieldStart - 1)];
-					int fieldIdx = 0;
-					for (int i = fieldStart; i < fields.length + fieldStart; i++) {
-						String column = md.getColumnName(i);
-
-						DcField field = module.getField(column);
-						
-						if (field != null) {
-						    fields[fieldIdx++] = field.getIndex();
-						} else {
-						    logger.error("Could not find field for column " + column + ", the value will be skipped.");
-						    fields[fieldIdx++] = -1;
-						}
-					}
-				}
-
-				dco = module.getItem();
-				setValues(rs, dco, fields, requestedFields);
+			    if (hasModuleIdx) {
+			        moduleIdx = rs.getInt(1);
+			        mapping = mappings.get(Integer.valueOf(moduleIdx));
+			        
+			        if (mapping == null) {
+			            module = DcModules.get(moduleIdx);
+			            
+			            if (module == null) {
+			                logger.fatal("Could not find module for " + moduleIdx);
+			                continue;
+			            }
+			            
+			            mapping = new ResultSetMapping(module, md, 2, requestedFields);
+			            mappings.put(Integer.valueOf(moduleIdx), mapping);
+			        }
+			    } else if (mapping == null) {
+			        module = DcModules.get(md.getTableName(1));
+			        
+			        if (module == null) {
+			            logger.fatal("Could not find module for " + md.getTableName(1));
+			            break;
+			        }
+			        
+			        mapping = new ResultSetMapping(module, md, 1, requestedFields);
+			    }
+
+				dco = mapping.getModule().getItem();
+				setValues(rs, dco, mapping);
 
 				objects.add(dco);
+				
+				if (!converted.containsKey(mapping))
+				    converted.put(mapping, new ArrayList<DcObject>());
+				
+				converted.get(mapping).add(dco);
 			}
+			
+			for (ResultSetMapping m : converted.keySet())
+			    initialize(su, m, converted.get(m));
+			
 		} catch (Exception e) {
 			logger.error("An error occurred while converting result set to items", e);
 		}
@@ -481,68 +613,66 @@ public class DataManager {
 		return objects;
 	}
 	
-	public void setValues(ResultSet rs, DcObject item, int[] fields, int[] requestedFields) {
+	/**
+	 * Loads the references, the loan information and the images for the converted items.
+	 * When a user is provided the information for all items is prefetched (see {@link Prefetch})
+	 * after which the items are initialized from memory. Otherwise the information is loaded per item.
+	 * @param su The user on whose behalf the information is prefetched or null.
+	 */
+	private void initialize(SecuredUser su, ResultSetMapping mapping, List<DcObject> items) {
+	    Prefetch prefetch = null;
+	    boolean load = DatabaseManager.getInstance().isInitialized();
+	    
+	    try {
+	        if (su != null && load && Prefetch.isNeeded(mapping)) {
+	            prefetch = new Prefetch(su, mapping, items);
+	            prefetch.install();
+	        }
+	        
+	        for (DcObject item : items) {
+	            try {
+	                if (load) {
+	                    for (int field : mapping.getReferences())
+	                        item.initializeReferences(field, false);
+	
+	                    if (mapping.isLoan())
+	                        item.setLoanInformation();
+	
+	                    if (mapping.isImages())
+	                        item.initializeImages();
+	                }
+	                
+	                item.setNew(false);
+	                item.markAsUnchanged();
+	            } catch (Exception e) {
+	                logger.error("An error occurred while converting result set to items", e);
+	            }
+	        }
+	    } finally {
+	        if (prefetch != null)
+	            prefetch.uninstall();
+	    }
+	}
+	
+	private void setValues(ResultSet rs, DcObject item, ResultSetMapping mapping) {
 		try {
+		    int[] columns = mapping.getColumns();
+		    int[] fields = mapping.getFields();
+		    
 			Object value = null;
-			String column;
-			for (int i = 0; i < fields.length; i++) {
-			    
-			    if (fields[i] == -1)
-			        continue;
-			    
-				DcField field = item.getField(fields[i]);
-				column = field.getDatabaseFieldName();
-
-				if (field.isUiOnly())
-					continue;
-
+			for (int i = 0; i < columns.length; i++) {
 				try {
-					value = rs.getObject(column);
+					value = rs.getObject(columns[i]);
 					value = CoreUtilities.isEmpty(value) ? null : value;
 					item.setValue(fields[i], value);
 				} catch (Exception e) {
 					logger.error(
 							"Could not retrieve and/or set value for field "
-									+ field, e);
+									+ item.getField(fields[i]), e);
 				}
 			}
 
-			item.setValue(Media._SYS_MODULE, item.getModule().getObjectName());
-
-			boolean loan = requestedFields == null;
-			boolean images = requestedFields == null;
-
-			if (DatabaseManager.getInstance().isInitialized()) {
-			    requestedFields = requestedFields == null ? item.getFieldIndices() : requestedFields;
-			    
-				for (int field : requestedFields) {
-					if (item.getModule().canBeLend() &&
-				          (field == DcObject._SYS_AVAILABLE
-						|| field == DcObject._SYS_LOANSTATUS
-						|| field == DcObject._SYS_LOANSTATUSDAYS
-						|| field == DcObject._SYS_LOANDUEDATE 
-						|| field == DcObject._SYS_LOANDURATION))
-						
-						loan |= true;
-					else if (	item.getField(field) != null && 
-								item.getModule().getIndex() != DcModules._PICTURE &&
-							    item.getField(field).getValueType() == DcRepository.ValueTypes._PICTURE)
-						images |= true;
-					else if (item.getField(field) != null &&
-							 item.getField(field).getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION)
-						item.initializeReferences(field, false);
-				}
-
-				if (loan)
-					item.setLoanInformation();
-
-				if (images && item.getModule().isHasImages())
-					item.initializeImages();
-			}
-
-			item.setNew(false);
-			item.markAsUnchanged();
-
+			item.setValue(Media._SYS_MODULE, mapping.getModule().getObjectName());
 		} catch (Exception e) {
 			logger.error(
 					"An error occurred while converting result set to items", e);
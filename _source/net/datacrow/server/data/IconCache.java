@@ -0,0 +1,158 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.objects.DcImageIcon;
+import net.datacrow.core.utilities.CoreUtilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Server side cache of icons. Icons are stored on disk as icon_[ID].jpg 
+ * (see {@link net.datacrow.server.db.Query}) and served by the image server. 
+ * The content of the icon files is kept in memory for as long as the file on disk is unchanged.
+ * Every caller gets its own icon, created from the cached content; icons are mutable and 
+ * are therefore never shared between items.
+ * At most {@link #_MAX_ICONS} icons are kept; the least recently used icons are removed first.
+ */
+public class IconCache {
+    
+    private static Logger logger = Logger.getLogger(IconCache.class.getName());
+    
+    private static final int _MAX_ICONS = 5000;
+    
+    private static IconCache instance = new IconCache();
+    
+    private final Map<String, CachedIcon> icons = new LinkedHashMap<String, CachedIcon>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedIcon> eldest) {
+            return size() > _MAX_ICONS;
+        }
+    };
+    
+    private IconCache() {}
+    
+    /**
+     * Retrieves the sole instance of this class
+     */
+    public static IconCache getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Retrieves the icon file of the specified item.
+     */
+    public File getFile(String ID) {
+        return new File(DcConfig.getInstance().getImageDir(), "icon_" + ID + ".jpg");
+    }
+    
+    /**
+     * Retrieves the icon of the specified item.
+     * @return A new icon or null if the icon file does not exist or could not be read.
+     */
+    public DcImageIcon getIcon(String ID) {
+        File file = getFile(ID);
+        
+        if (!file.exists()) {
+            remove(ID);
+            return null;
+        }
+        
+        CachedIcon cached;
+        synchronized (icons) {
+            cached = icons.get(ID);
+        }
+        
+        if (cached != null && cached.isCurrent(file))
+            return new DcImageIcon(cached.getBytes());
+        
+        // taken before reading; a change made while reading is noticed on the next request
+        long lastModified = file.lastModified();
+        long length = file.length();
+        
+        byte[] bytes;
+        try {
+            bytes = CoreUtilities.readFile(file);
+        } catch (IOException ioe) {
+            logger.warn("Could not read icon " + file, ioe);
+            return null;
+        }
+        
+        synchronized (icons) {
+            icons.put(ID, new CachedIcon(bytes, lastModified, length));
+        }
+        return new DcImageIcon(bytes);
+    }
+    
+    /**
+     * Removes the icon of the specified item from the cache.
+     */
+    public void remove(String ID) {
+        synchronized (icons) {
+            icons.remove(ID);
+        }
+    }
+    
+    /**
+     * Removes the icons of the specified items from the cache.
+     */
+    public void remove(Collection<String> IDs) {
+        synchronized (icons) {
+            for (String ID : IDs)
+                icons.remove(ID);
+        }
+    }
+    
+    private static class CachedIcon {
+        
+        private final byte[] bytes;
+        private final long lastModified;
+        private final long length;
+        
+        private CachedIcon(byte[] bytes, long lastModified, long length) {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+        
+        public byte[] getBytes() {
+            return bytes;
+        }
+        
+        public boolean isCurrent(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+}
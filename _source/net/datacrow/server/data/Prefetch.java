@@ -0,0 +1,301 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcField;
+import net.datacrow.core.objects.DcMapping;
+import net.datacrow.core.objects.DcObject;
+import net.datacrow.core.objects.Loan;
+import net.datacrow.core.objects.Picture;
+import net.datacrow.core.security.SecuredUser;
+import net.datacrow.server.db.DatabaseManager;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the references, current loans and pictures of a set of items. The information 
+ * is loaded with one query per table (per {@link #_CHUNK_SIZE} items) instead of 
+ * several queries per item.
+ * 
+ * While installed, the prefetched information is served to the current thread by the 
+ * connector (see {@link net.datacrow.server.LocalServerConnector}). The items initialize 
+ * their references, loan information and images through the connector, which no longer
+ * needs to query the database for each item.
+ */
+public class Prefetch {
+    
+    private static Logger logger = Logger.getLogger(Prefetch.class.getName());
+    
+    private static final int _CHUNK_SIZE = 1000;
+    
+    private static final ThreadLocal<Prefetch> current = new ThreadLocal<Prefetch>();
+    
+    private final SecuredUser su;
+    
+    private final Collection<String> IDs = new HashSet<String>();
+    
+    private final Map<Integer, Map<String, Collection<DcObject>>> references = new HashMap<Integer, Map<String, Collection<DcObject>>>();
+    private Map<String, Loan> loans;
+    private Map<String, Collection<Picture>> pictures;
+    
+    private Prefetch previous;
+    
+    /**
+     * Loads the required information for the provided items. 
+     * @param su The user on whose behalf the information is loaded.
+     * @param mapping The mapping plan used to create the items.
+     * @param items Items created using the mapping plan.
+     */
+    protected Prefetch(SecuredUser su, ResultSetMapping mapping, Collection<DcObject> items) {
+        this.su = su;
+        
+        for (DcObject item : items) {
+            if (item.getID() != null)
+                IDs.add(item.getID());
+        }
+        
+        if (IDs.size() == 0) return;
+        
+        DcModule module = mapping.getModule();
+        
+        DcField field;
+        int mappingModIdx;
+        for (int fieldIdx : mapping.getReferences()) {
+            field = module.getField(fieldIdx);
+            mappingModIdx = DcModules.getMappingModIdx(module.getIndex(), field.getReferenceIdx(), fieldIdx);
+            references.put(Integer.valueOf(mappingModIdx), loadReferences(mappingModIdx));
+        }
+        
+        if (mapping.isLoan())
+            loans = loadLoans();
+
+        if (mapping.isImages())
+            pictures = loadPictures();
+    }
+    
+    /**
+     * Makes the prefetched information available to the current thread.
+     * Always call {@link #uninstall()} when done.
+     */
+    protected void install() {
+        previous = current.get();
+        current.set(this);
+    }
+    
+    /**
+     * Removes the prefetched information from the current thread.
+     */
+    protected void uninstall() {
+        if (previous == null)
+            current.remove();
+        else 
+            current.set(previous);
+        
+        previous = null;
+    }
+    
+    /**
+     * Retrieves the prefetched references (not fully loaded) for the specified item.
+     * @return The references or null when these have not been prefetched.
+     */
+    public static Collection<DcObject> getReferences(int mappingModIdx, String parentID, boolean full) {
+        Prefetch prefetch = current.get();
+        
+        if (full || prefetch == null || !prefetch.IDs.contains(parentID))
+            return null;
+        
+        Map<String, Collection<DcObject>> m = prefetch.references.get(Integer.valueOf(mappingModIdx));
+        
+        if (m == null)
+            return null;
+
+        Collection<DcObject> c = m.get(parentID);
+        return c == null ? new ArrayList<DcObject>() : new ArrayList<DcObject>(c);
+    }
+    
+    /**
+     * Retrieves the prefetched current loan for the specified item.
+     * @return The loan (a new loan if the item is not lend) or null when the loans 
+     * have not been prefetched.
+     */
+    public static Loan getCurrentLoan(String parentID) {
+        Prefetch prefetch = current.get();
+        
+        if (prefetch == null || prefetch.loans == null || !prefetch.IDs.contains(parentID))
+            return null;
+
+        Loan loan = prefetch.loans.get(parentID);
+        return loan == null ? new Loan() : loan;
+    }
+    
+    /**
+     * Retrieves the prefetched pictures for the specified item.
+     * @return The pictures or null when the pictures have not been prefetched.
+     */
+    public static Collection<Picture> getPictures(String parentID) {
+        Prefetch prefetch = current.get();
+        
+        if (prefetch == null || prefetch.pictures == null || !prefetch.IDs.contains(parentID))
+            return null;
+        
+        Collection<Picture> c = prefetch.pictures.get(parentID);
+        return c == null ? new ArrayList<Picture>() : new ArrayList<Picture>(c);
+    }
+    
+    private Map<String, Collection<DcObject>> loadReferences(int mappingModIdx) {
+        DcModule mappingMod = DcModules.get(mappingModIdx);
+        int[] fields = mappingMod.getMinimalFields(null);
+        
+        String parentColumn = mappingMod.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName();
+        String columns = parentColumn;
+        DcField field;
+        for (int fieldIdx : fields) {
+            field = mappingMod.getField(fieldIdx);
+            if (field != null && !field.isUiOnly() && !field.getDatabaseFieldName().equals(parentColumn))
+                columns += ", " + field.getDatabaseFieldName();
+        }
+        
+        Map<String, Collection<DcObject>> result = new HashMap<String, Collection<DcObject>>();
+        
+        for (DcObject mapping : load("SELECT " + columns + " FROM " + mappingMod.getTableName() + " WHERE " + parentColumn, fields))
+            add(result, (String) mapping.getValue(DcMapping._A_PARENT_ID), mapping);
+        
+        return result;
+    }
+    
+    private Map<String, Loan> loadLoans() {
+        DcModule module = DcModules.get(DcModules._LOAN);
+        String sql = "SELECT * FROM " + module.getTableName() + " WHERE " + 
+                     module.getField(Loan._B_ENDDATE).getDatabaseFieldName() + " IS NULL AND " + 
+                     module.getField(Loan._D_OBJECTID).getDatabaseFieldName();
+        
+        Map<String, Loan> result = new HashMap<String, Loan>();
+        for (DcObject loan : load(sql, null))
+            result.put((String) loan.getValue(Loan._D_OBJECTID), (Loan) loan);
+        
+        return result;
+    }
+    
+    private Map<String, Collection<Picture>> loadPictures() {
+        DcModule module = DcModules.get(DcModules._PICTURE);
+        String sql = "SELECT * FROM " + module.getTableName() + " WHERE " + 
+                     module.getField(Picture._A_OBJECTID).getDatabaseFieldName();
+        
+        Map<String, Collection<Picture>> result = new HashMap<String, Collection<Picture>>();
+        Collection<Picture> c;
+        String ID;
+        for (DcObject picture : load(sql, null)) {
+            ID = (String) picture.getValue(Picture._A_OBJECTID);
+            c = result.get(ID);
+            if (c == null) {
+                c = new ArrayList<Picture>();
+                result.put(ID, c);
+            }
+            c.add((Picture) picture);
+        }
+        
+        return result;
+    }
+    
+    private void add(Map<String, Collection<DcObject>> m, String ID, DcObject dco) {
+        Collection<DcObject> c = m.get(ID);
+        if (c == null) {
+            c = new ArrayList<DcObject>();
+            m.put(ID, c);
+        }
+        c.add(dco);
+    }
+    
+    /**
+     * Executes the query for all IDs. The query is expected to end with the column 
+     * on which the IN condition is applied.
+     */
+    private List<DcObject> load(String sql, int[] fields) {
+        List<DcObject> items = new ArrayList<DcObject>();
+        List<String> all = new ArrayList<String>(IDs);
+        
+        // the privileges of the user apply, as they do when the information is loaded per item
+        Connection conn = DatabaseManager.getInstance().getConnection(su);
+        
+        if (conn == null) {
+            // the information of the items will be retrieved per item
+            IDs.clear();
+            return items;
+        }
+        
+        PreparedStatement ps = null;
+        StringBuffer in;
+        List<String> chunk;
+        for (int i = 0; i < all.size(); i += _CHUNK_SIZE) {
+            chunk = all.subList(i, Math.min(all.size(), i + _CHUNK_SIZE));
+            
+            in = new StringBuffer();
+            for (int j = 0; j < chunk.size(); j++)
+                in.append(j == 0 ? "?" : ", ?");
+            
+            try {
+                ps = conn.prepareStatement(sql + " IN (" + in + ")");
+                
+                int pos = 1;
+                for (String ID : chunk)
+                    ps.setString(pos++, ID);
+                
+                items.addAll(DataManager.getInstance().convert(su, ps.executeQuery(), fields));
+            } catch (SQLException se) {
+                // the information of these items will be retrieved per item
+                IDs.removeAll(chunk);
+                logger.error("Could not prefetch the information for " + chunk.size() + " items: " + sql, se);
+            } finally {
+                try {
+                    if (ps != null) ps.close();
+                } catch (SQLException se) {
+                    logger.debug("Could not close database resources", se);
+                }
+            }
+        }
+        
+        return items;
+    }
+    
+    /**
+     * Indicates if the items of the mapping plan need additional information to be loaded.
+     */
+    protected static boolean isNeeded(ResultSetMapping mapping) {
+        return mapping.isLoan() || mapping.isImages() || mapping.getReferences().length > 0;
+    }
+}
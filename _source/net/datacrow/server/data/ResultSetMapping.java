@@ -0,0 +1,162 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.data;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import net.datacrow.core.DcRepository;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcField;
+import net.datacrow.core.objects.DcObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The mapping plan for a result set. Links the columns of the result set (by ordinal) 
+ * to the fields of the module and determines, once, which additional information 
+ * (references, loan information and images) needs to be loaded for each item.
+ * 
+ * A plan is only valid for result sets of the same shape and module.
+ */
+class ResultSetMapping {
+    
+    private static Logger logger = Logger.getLogger(ResultSetMapping.class.getName());
+    
+    private final DcModule module;
+    
+    private final int[] columns;
+    private final int[] fields;
+    private final int[] references;
+    
+    private final boolean loan;
+    private final boolean images;
+    
+    /**
+     * Creates the mapping plan.
+     * @param module The module of the items to be created.
+     * @param md The meta data of the result set.
+     * @param fieldStart The ordinal of the first column holding a field value.
+     * @param requestedFields The requested fields (null for all fields).
+     */
+    protected ResultSetMapping(DcModule module, ResultSetMetaData md, int fieldStart, int[] requestedFields) throws SQLException {
+        this.module = module;
+        
+        DcObject template = module.getItem();
+        
+        int count = md.getColumnCount() - (fieldStart - 1);
+        int[] c = new int[count];
+        int[] f = new int[count];
+        int idx = 0;
+        
+        String column;
+        DcField field;
+        for (int i = fieldStart; i < count + fieldStart; i++) {
+            column = md.getColumnName(i);
+            field = module.getField(column);
+            
+            if (field == null) {
+                logger.error("Could not find field for column " + column + ", the value will be skipped.");
+            } else if (!field.isUiOnly()) {
+                c[idx] = i;
+                f[idx] = field.getIndex();
+                idx++;
+            }
+        }
+        
+        columns = Arrays.copyOf(c, idx);
+        fields = Arrays.copyOf(f, idx);
+        
+        boolean loan = requestedFields == null;
+        boolean images = requestedFields == null;
+        
+        int[] requested = requestedFields == null ? template.getFieldIndices() : requestedFields;
+        int[] r = new int[requested.length];
+        idx = 0;
+        for (int fieldIdx : requested) {
+            field = template.getField(fieldIdx);
+            
+            if (module.canBeLend() &&
+                  ( fieldIdx == DcObject._SYS_AVAILABLE
+                 || fieldIdx == DcObject._SYS_LOANSTATUS
+                 || fieldIdx == DcObject._SYS_LOANSTATUSDAYS
+                 || fieldIdx == DcObject._SYS_LOANDUEDATE 
+                 || fieldIdx == DcObject._SYS_LOANDURATION))
+                loan = true;
+            else if (   field != null && 
+                        module.getIndex() != DcModules._PICTURE &&
+                        field.getValueType() == DcRepository.ValueTypes._PICTURE)
+                images = true;
+            else if (field != null && field.getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION)
+                r[idx++] = fieldIdx;
+        }
+        
+        this.references = Arrays.copyOf(r, idx);
+        this.loan = loan && module.canBeLend();
+        this.images = images && module.isHasImages();
+    }
+    
+    public DcModule getModule() {
+        return module;
+    }
+    
+    /**
+     * The column ordinals, aligned with {@link #getFields()}.
+     */
+    public int[] getColumns() {
+        return columns;
+    }
+    
+    /**
+     * The field indices, aligned with {@link #getColumns()}.
+     */
+    public int[] getFields() {
+        return fields;
+    }
+    
+    /**
+     * The multi-reference fields of which the references need to be loaded.
+     */
+    public int[] getReferences() {
+        return references;
+    }
+    
+    /**
+     * Indicates if the loan information needs to be loaded.
+     */
+    public boolean isLoan() {
+        return loan;
+    }
+    
+    /**
+     * Indicates if the images need to be loaded.
+     */
+    public boolean isImages() {
+        return images;
+    }
+}
@@ -0,0 +1,150 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.DcRepository;
+import net.datacrow.core.data.DataFilter;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcField;
+import net.datacrow.core.objects.DcMapping;
+import net.datacrow.core.objects.Loan;
+import net.datacrow.core.objects.Picture;
+import net.datacrow.core.security.SecuredUser;
+import net.datacrow.server.data.IconCache;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Deletes all items matching a data filter. The same clean up is performed as by the
+ * {@link DeleteQuery} (loans, children, references, mappings and pictures) but each step
+ * is executed once for the complete set of items instead of once per item.
+ * Image files are only removed after the transaction has been committed.
+ * 
+ * Note that the before and after delete hooks of the items are not called.
+ */
+public class BulkDeleteQuery extends BulkQuery {
+    
+    private final static Logger logger = Logger.getLogger(BulkDeleteQuery.class.getName());
+    
+    public BulkDeleteQuery(SecuredUser su, DataFilter df) {
+        super(su, df);
+    }
+    
+    @Override
+    protected int execute(Statement stmt, DcModule module) throws SQLException {
+        String IDs = getIDs(module);
+        
+        int count = executeUpdate(stmt, module, "DELETE FROM " + module.getTableName() + " WHERE ID IN " + IDs);
+        
+        if (module.canBeLend()) {
+            DcModule loan = DcModules.get(DcModules._LOAN);
+            executeUpdate(stmt, loan, "DELETE FROM " + loan.getTableName() + " WHERE " +
+                    loan.getField(Loan._D_OBJECTID).getDatabaseFieldName() + " IN " + IDs);
+        }
+
+        // Delete children. Ignore any abstract module (parent and/or children)
+        if (module.getChild() != null && !module.isAbstract() && !module.getChild().isAbstract()) {
+            DcModule childModule = module.getChild(); 
+            executeUpdate(stmt, childModule, "DELETE FROM " + childModule.getTableName() + " WHERE " + 
+                    childModule.getField(childModule.getParentReferenceFieldIndex()).getDatabaseFieldName() + " IN " + IDs);
+        }
+        
+        // Remove any references to the deleted items.
+        if (module.hasDependingModules()) {
+            for (DcModule m : DcModules.getReferencingModules(module.getIndex())) {
+                if (m.isAbstract()) continue;
+                
+                if (m.getType() == DcModule._TYPE_MAPPING_MODULE) {
+                    executeUpdate(stmt, m, "DELETE FROM " + m.getTableName() + " WHERE " + 
+                            m.getField(DcMapping._B_REFERENCED_ID).getDatabaseFieldName() + " IN " + IDs);
+                } else {
+                    for (DcField field : m.getFields()) {
+                        if (!field.isUiOnly() && field.getReferenceIdx() == module.getIndex()) {
+                            executeUpdate(stmt, m, "UPDATE " + m.getTableName() + " SET " +  field.getDatabaseFieldName() + " = NULL WHERE " + 
+                                    field.getDatabaseFieldName() + " IN " + IDs);
+                        }
+                    }
+                }
+            }
+        }
+        
+        DcModule mapping;
+        for (DcField field : module.getFields()) {
+            if (field.getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION) {
+                mapping = DcModules.get(DcModules.getMappingModIdx(field.getModule(), field.getReferenceIdx(), field.getIndex()));
+                executeUpdate(stmt, mapping, "DELETE FROM " + mapping.getTableName() + " WHERE " + 
+                        mapping.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName() + " IN " + IDs);
+            }
+        }
+        
+        DcModule picture = DcModules.get(DcModules._PICTURE);
+        executeUpdate(stmt, picture, "DELETE FROM " + picture.getTableName() + " WHERE " +
+                picture.getField(Picture._A_OBJECTID).getDatabaseFieldName() + " IN " + IDs);
+        
+        return count;
+    }
+    
+    /**
+     * Removes the pictures and icons of the deleted items from disk and from the icon cache.
+     */
+    @Override
+    protected void afterCommit(DcModule module, List<String> IDs) {
+        File imageDir = new File(DcConfig.getInstance().getImageDir());
+        
+        IconCache.getInstance().remove(IDs);
+        
+        for (DcField field : module.getFields()) {
+            for (String ID : IDs) {
+                if (field.getValueType() == DcRepository.ValueTypes._PICTURE) {
+                    delete(new File(imageDir, ID + "_" + field.getDatabaseFieldName() + ".jpg"));
+                    delete(new File(imageDir, ID + "_" + field.getDatabaseFieldName() + "_small.jpg"));
+                } else if (field.getValueType() == DcRepository.ValueTypes._ICON) {
+                    delete(new File(imageDir, "icon_" + ID + ".jpg"));
+                }
+            }
+        }
+    }
+    
+    private void delete(File file) {
+        if (file.exists()) {
+            boolean deleted = file.delete();
+            logger.debug("Delete file " + file + " [success = " + deleted + "]");
+        }
+    }
+    
+    @Override
+    protected void finalize() throws Throwable {
+        clear();
+        super.finalize();
+    }
+}
@@ -0,0 +1,264 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.datacrow.core.data.DataFilter;
+import net.datacrow.core.data.DataFilterConverter;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcObject;
+import net.datacrow.core.security.SecuredUser;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Base class for queries which change all items matching a data filter at once.
+ * 
+ * The IDs of the matching items are collected in a temporary table which can be joined 
+ * by the statements of the implementing class (see {@link #getIDs(DcModule)}). All statements
+ * are executed within a single transaction on a dedicated connection; either all items are 
+ * changed or none. 
+ */
+public abstract class BulkQuery extends Query {
+    
+    private final static Logger logger = Logger.getLogger(BulkQuery.class.getName());
+    
+    // session scoped; only visible to the connection which declared it
+    private static final String _TEMP_TABLE = "BULK_ITEMS";
+    private static final int _BATCH_SIZE = 500;
+    private static final int _FLUSH_TIMEOUT = 60000;
+    
+    private DataFilter df;
+    
+    private final Map<Integer, List<String>> keys = new LinkedHashMap<Integer, List<String>>();
+    private final Collection<Integer> affected = new HashSet<Integer>();
+    
+    private int count = 0;
+    
+    public BulkQuery(SecuredUser su, DataFilter df) {
+        super(su, df.getModule());
+        this.df = df;
+    }
+    
+    /**
+     * The number of changed items.
+     */
+    public int getCount() {
+        return count;
+    }
+    
+    @Override
+    protected void clear() {
+        super.clear();
+        df = null;
+        keys.clear();
+        affected.clear();
+    }
+    
+    /**
+     * Executes the statements for the matching items of the given module.
+     * @param stmt Statement of the transaction.
+     * @param module The module of the items.
+     * @return The number of changed items.
+     */
+    protected abstract int execute(Statement stmt, DcModule module) throws SQLException;
+    
+    /**
+     * Called after the transaction has been committed.
+     * @param module The module of the items.
+     * @param IDs The IDs of the changed items.
+     */
+    protected void afterCommit(DcModule module, List<String> IDs) {}
+    
+    /**
+     * Sub query selecting the IDs of the matching items of the given module.
+     */
+    protected String getIDs(DcModule module) {
+        return "(SELECT ID FROM SESSION." + _TEMP_TABLE + " WHERE MODULEIDX = " + module.getIndex() + ")";
+    }
+    
+    /**
+     * Executes an update statement and marks the module as changed.
+     * @return The number of affected rows.
+     */
+    protected int executeUpdate(Statement stmt, DcModule module, String sql) throws SQLException {
+        if (logger.isDebugEnabled())
+            logger.debug(sql);
+        
+        affected.add(Integer.valueOf(module.getIndex()));
+        return stmt.executeUpdate(sql);
+    }
+    
+    /**
+     * Executes a prepared update statement and marks the module as changed.
+     * @return The number of affected rows.
+     */
+    protected int executeUpdate(PreparedStatement ps, DcModule module) throws SQLException {
+        affected.add(Integer.valueOf(module.getIndex()));
+        return ps.executeUpdate();
+    }
+    
+    @Override
+    public List<DcObject> run() {
+        Statement stmt = null;
+        
+        // queued updates and inserts are to be executed first; these could otherwise restore
+        // the information of deleted items or overwrite the new values
+        if (!DatabaseManager.getInstance().flush(_FLUSH_TIMEOUT)) {
+            logger.warn("Not all queued queries could be executed within " + _FLUSH_TIMEOUT + "ms, no changes have been made");
+            setError(new SQLException("The queued queries could not be executed before changing the items"));
+            return null;
+        }
+        
+        // a dedicated connection; the shared connection of the user stays in auto commit mode 
+        Connection c = DatabaseManager.getInstance().getConnection(getUser().getUsername(), getUser().getPassword());
+        
+        if (c == null) {
+            setSuccess(false);
+            return null;
+        }
+        
+        try {
+            stmt = c.createStatement();
+            stmt.execute("DECLARE LOCAL TEMPORARY TABLE " + _TEMP_TABLE + 
+                         " (ID VARCHAR(255) NOT NULL, MODULEIDX INTEGER NOT NULL) ON COMMIT PRESERVE ROWS");
+            
+            collect(c);
+            
+            for (Integer moduleIdx : keys.keySet()) {
+                if (ConversionJob.isReadOnly(moduleIdx.intValue())) {
+                    logger.warn("Items of module " + DcModules.get(moduleIdx.intValue()) + " cannot be changed " +
+                                "while its fields are being converted");
+                    setSuccess(false);
+                    return null;
+                }
+            }
+            
+            if (keys.isEmpty())
+                return null;
+            
+            c.setAutoCommit(false);
+            
+            for (Integer moduleIdx : keys.keySet())
+                count += execute(stmt, DcModules.get(moduleIdx.intValue()));
+            
+            c.commit();
+
+            for (Integer moduleIdx : keys.keySet())
+                afterCommit(DcModules.get(moduleIdx.intValue()), keys.get(moduleIdx));
+            
+            setSuccess(true);
+            
+            logger.info(getClass().getSimpleName() + " changed " + count + " items of module " + DcModules.get(getModuleIdx()));
+            
+        } catch (SQLException se) {
+            logger.error("The items could not be changed, no changes have been made", se);
+            setError(se);
+            count = 0;
+            
+            try {
+                c.rollback();
+            } catch (SQLException e) {
+                logger.error("The changes could not be rolled back", e);
+            }
+        } finally {
+            for (Integer moduleIdx : affected)
+                ModuleVersions.getInstance().invalidate(moduleIdx.intValue());
+            
+            try {
+                if (stmt != null) stmt.close();
+                c.close();
+            } catch (SQLException e) {
+                logger.error("Error while closing connection", e);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Collects the IDs of the items matching the filter, in memory and in the temporary table.
+     */
+    private void collect(Connection c) throws SQLException {
+        DataFilterConverter dfc = new DataFilterConverter(df);
+        String sql = dfc.toSQL(new int[] {DcObject._ID}, false, true);
+        
+        if (logger.isDebugEnabled())
+            logger.debug(sql);
+        
+        Statement stmt = c.createStatement();
+        PreparedStatement ps = c.prepareStatement("INSERT INTO SESSION." + _TEMP_TABLE + " (ID, MODULEIDX) VALUES (?, ?)");
+        
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+            
+            int moduleIdx;
+            int batch = 0;
+            String ID;
+            List<String> IDs;
+            while (rs.next()) {
+                try {
+                    moduleIdx = rs.getInt("MODULEIDX");
+                } catch (Exception e) {
+                    moduleIdx = df.getModule();
+                }
+                
+                ID = rs.getString("ID");
+                IDs = keys.get(Integer.valueOf(moduleIdx));
+                if (IDs == null) {
+                    IDs = new ArrayList<String>();
+                    keys.put(Integer.valueOf(moduleIdx), IDs);
+                }
+                IDs.add(ID);
+                
+                ps.setString(1, ID);
+                ps.setInt(2, moduleIdx);
+                ps.addBatch();
+                
+                if (++batch % _BATCH_SIZE == 0)
+                    ps.executeBatch();
+            }
+            
+            ps.executeBatch();
+            rs.close();
+        } finally {
+            ps.close();
+            stmt.close();
+        }
+    }
+}
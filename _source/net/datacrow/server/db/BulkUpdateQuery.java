@@ -0,0 +1,205 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import net.datacrow.core.DcRepository;
+import net.datacrow.core.data.DataFilter;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcField;
+import net.datacrow.core.objects.DcMapping;
+import net.datacrow.core.objects.DcObject;
+import net.datacrow.core.security.SecuredUser;
+import net.datacrow.core.utilities.CoreUtilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sets the value of a single field for all items matching a data filter using one set 
+ * based UPDATE statement. For collection fields (multiple references) the mappings of 
+ * the items are replaced instead. The modified date of the items is updated as well.
+ * 
+ * Referenced items are expected to exist; unlike the {@link UpdateQuery} no new references 
+ * are created. Pictures and icons cannot be updated in bulk.
+ */
+public class BulkUpdateQuery extends BulkQuery {
+    
+    private final static Logger logger = Logger.getLogger(BulkUpdateQuery.class.getName());
+    
+    private final int fieldIdx;
+    private Object value;
+    
+    /**
+     * @param su The user.
+     * @param df The filter selecting the items to be updated.
+     * @param fieldIdx The index of the field to be updated.
+     * @param value The new value. For collection fields a collection of items, mappings or IDs.
+     */
+    public BulkUpdateQuery(SecuredUser su, DataFilter df, int fieldIdx, Object value) {
+        super(su, df);
+        this.fieldIdx = fieldIdx;
+        this.value = value;
+    }
+    
+    @Override
+    protected void clear() {
+        super.clear();
+        value = null;
+    }
+    
+    @Override
+    public List<DcObject> run() {
+        DcField field = DcModules.get(getModuleIdx()).getField(fieldIdx);
+        
+        if (    field == null || field.isUiOnly() || fieldIdx == DcObject._ID ||
+                field.getValueType() == DcRepository.ValueTypes._PICTURE ||
+                field.getValueType() == DcRepository.ValueTypes._ICON) {
+            
+            logger.warn("Field [" + fieldIdx + "] of module " + DcModules.get(getModuleIdx()) + " cannot be updated in bulk");
+            setSuccess(false);
+            return null;
+        }
+        
+        return super.run();
+    }
+    
+    @Override
+    protected int execute(Statement stmt, DcModule module) throws SQLException {
+        DcField field = module.getField(fieldIdx);
+        
+        if (field == null)
+            return 0;
+        
+        List<Object> values = new ArrayList<Object>();
+        StringBuffer sql = new StringBuffer("UPDATE " + module.getTableName() + " SET ");
+        
+        if (field.getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION) {
+            replaceMappings(stmt, field, module);
+        } else {
+            sql.append(field.getDatabaseFieldName());
+            sql.append(" = ?");
+            values.add(CoreUtilities.getQueryValue(value, field));
+        }
+        
+        DcField modified = module.getField(DcObject._SYS_MODIFIED);
+        if (modified != null && !modified.isUiOnly()) {
+            sql.append(values.size() > 0 ? ", " : "");
+            sql.append(modified.getDatabaseFieldName());
+            sql.append(" = ?");
+            values.add(CoreUtilities.getQueryValue(new Date(), modified));
+        }
+        
+        // nothing to update on the item itself; count the items of which the mappings were replaced
+        if (values.isEmpty()) {
+            return executeUpdate(stmt, module, 
+                    "UPDATE " + module.getTableName() + " SET ID = ID WHERE ID IN " + getIDs(module));
+        }
+        
+        sql.append(" WHERE ID IN ");
+        sql.append(getIDs(module));
+        
+        if (logger.isDebugEnabled())
+            logger.debug(sql);
+        
+        PreparedStatement ps = stmt.getConnection().prepareStatement(sql.toString());
+        try {
+            setValues(ps, values);
+            return executeUpdate(ps, module);
+        } finally {
+            ps.close();
+        }
+    }
+    
+    /**
+     * Removes the existing mappings of the items and inserts a mapping for each of the 
+     * referenced items.
+     */
+    private void replaceMappings(Statement stmt, DcField field, DcModule module) throws SQLException {
+        DcModule mapping = DcModules.get(DcModules.getMappingModIdx(field.getModule(), field.getReferenceIdx(), field.getIndex()));
+        
+        executeUpdate(stmt, mapping, "DELETE FROM " + mapping.getTableName() + " WHERE " + 
+                mapping.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName() + " IN " + getIDs(module));
+        
+        String columns = mapping.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName() + ", " + 
+                         mapping.getField(DcMapping._B_REFERENCED_ID).getDatabaseFieldName();
+        String select = "ITEM.ID, CAST(? AS VARCHAR(255))";
+        
+        DcField id = mapping.getField(DcObject._ID);
+        if (id != null && !id.isUiOnly()) {
+            columns = id.getDatabaseFieldName() + ", " + columns;
+            select = ConversionEngine._NEW_ID + ", " + select;
+        }
+        
+        PreparedStatement ps = stmt.getConnection().prepareStatement(
+                "INSERT INTO " + mapping.getTableName() + " (" + columns + ") SELECT " + select + 
+                " FROM " + getIDs(module) + " ITEM");
+        
+        try {
+            for (String referencedID : getReferencedIDs()) {
+                ps.setString(1, referencedID);
+                executeUpdate(ps, mapping);
+            }
+        } finally {
+            ps.close();
+        }
+    }
+    
+    private Collection<String> getReferencedIDs() {
+        Collection<String> IDs = new ArrayList<String>();
+        
+        if (!(value instanceof Collection))
+            return IDs;
+        
+        String ID;
+        for (Object o : (Collection<?>) value) {
+            if (o instanceof DcMapping)
+                ID = (String) ((DcMapping) o).getValue(DcMapping._B_REFERENCED_ID);
+            else if (o instanceof DcObject)
+                ID = ((DcObject) o).getID();
+            else 
+                ID = o != null ? o.toString() : null;
+            
+            if (ID != null && !IDs.contains(ID))
+                IDs.add(ID);
+        }
+        
+        return IDs;
+    }
+    
+    @Override
+    protected void finalize() throws Throwable {
+        clear();
+        super.finalize();
+    }
+}
@@ -25,8 +25,10 @@
 
 package net.datacrow.server.db;
 
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
@@ -34,11 +36,8 @@ import java.util.StringTokenizer;
 
 import net.datacrow.core.DcRepository;
 import net.datacrow.core.console.UIComponents;
-import net.datacrow.core.data.DataFilter;
 import net.datacrow.core.modules.DcModule;
 import net.datacrow.core.modules.DcModules;
-import net.datacrow.core.objects.DcMapping;
-import net.datacrow.core.objects.DcObject;
 import net.datacrow.core.objects.DcProperty;
 import net.datacrow.core.security.SecuredUser;
 import net.datacrow.server.security.SecurityCenter;
@@ -196,149 +195,116 @@ public class Conversion {
      */
     public boolean execute() {
         
-        // Converting a reference field to a multi-reference field
-        if (getOldFieldType() == UIComponents._REFERENCEFIELD &&
-            getNewFieldType() == UIComponents._REFERENCESFIELD) {
+        if (isReferenceConversion()) {
             
-            return convertFromRefToMulti();
-         
-        // Converting any kind of field to a reference field
-        } else if (getNewFieldType() == UIComponents._REFERENCESFIELD ||
-                   getNewFieldType() == UIComponents._REFERENCEFIELD) {
+            if (isMultiReferenceConversion())
+                logger.info("Starting to convert reference field [" + columnName + "] to a multi references field");
+            else 
+                logger.info("Starting to convert field [" + columnName + "] to a reference field");
             
-            return convertToRef();
+            try {
+                convert(null, null, null);
+            } catch (Exception e) {
+                logger.error("Failed to create reference. Conversion has failed. Restart Data Crow to try again.", e);
+                return false;
+            }
+            
+            return finish();
             
         } else {
             
             return convertToText();
         }
-    }    
+    }
     
-    private SecuredUser getUser() {
-    	return SecurityCenter.getInstance().getAdmin();
+    /**
+     * Indicates if the data of the items needs to be converted (any kind of field to a reference field).
+     * These conversions can be executed in parts (see {@link #convert(Connection, String, String)}). 
+     */
+    protected boolean isReferenceConversion() {
+        return getNewFieldType() == UIComponents._REFERENCESFIELD ||
+               getNewFieldType() == UIComponents._REFERENCEFIELD;
     }
     
-    private boolean convertFromRefToMulti() {
-        
-        DcModule refMod = DcModules.get(moduleIdx + referencingModuleIdx) != null ? DcModules.get(moduleIdx + referencingModuleIdx) : DcModules.get(referencingModuleIdx);
-        
-        logger.info("Starting to convert reference field [" + columnName + "] to a multi references field");
-
-        String sql = "SELECT ID, " + getColumnName() + " FROM " + DcModules.get(getModuleIdx()).getTableName() + " " +
-                     "WHERE " + getColumnName() + " IS NOT NULL AND " + getColumnName() + 
-                     " IN (SELECT " + refMod.getField(DcObject._ID) + " FROM " + refMod.getTableName() + ")";
-        try {
-            ResultSet rs = DatabaseManager.getInstance().executeSQL(getUser(), sql);
-            logger.info(sql);
-            
-            DcModule mappingMod = DcModules.get(DcModules.getMappingModIdx(
-                    moduleIdx, refMod.getIndex(), DcModules.get(moduleIdx).getField(columnName).getIndex()));
-        
-            DcObject mapping = mappingMod.getItem();
-            while (rs.next()) {
-                String ID = rs.getString(1);
-                String referenceID = rs.getString(2);
-                mapping.setValue(DcMapping._A_PARENT_ID, ID);
-                mapping.setValue(DcMapping._B_REFERENCED_ID, referenceID);
-                new InsertQuery(getUser(), mapping).run();
-            }
-            
-            rs.close();
-            
-            DatabaseManager.getInstance().executeAsAdmin("ALTER TABLE " + DcModules.get(getModuleIdx()).getTableName() + " DROP COLUMN " + getColumnName());
-            
-        } catch (Exception e) {
-            logger.error("Failed to create reference. Conversion has failed. Restart Data Crow to try again.", e);
-            return false;
-        }
-        
-        return true;
+    /**
+     * Indicates if a reference field is converted to a multi-reference field.
+     */
+    private boolean isMultiReferenceConversion() {
+        return getOldFieldType() == UIComponents._REFERENCEFIELD &&
+               getNewFieldType() == UIComponents._REFERENCESFIELD;
     }
     
-    private boolean convertToRef() {
-        
-        DcModule refMod = DcModules.get(moduleIdx + referencingModuleIdx) != null ? DcModules.get(moduleIdx + referencingModuleIdx) : DcModules.get(referencingModuleIdx);
-        
-        logger.info("Starting to convert field [" + columnName + "] to a reference field");
-        
-        String sql = "select distinct " + columnName + " from " + DcModules.get(getModuleIdx()).getTableName() + " where " + columnName + " is not null";
+    /**
+     * Converts the data of the items within the specified range (see {@link ConversionEngine#setRange(String, String)}).
+     * @param c The connection to use or null to use a connection of its own.
+     * @param fromID The lower bound (exclusive) or null.
+     * @param toID The upper bound (inclusive) or null.
+     * @throws SQLException
+     */
+    protected void convert(Connection c, String fromID, String toID) throws SQLException {
+        ConversionEngine engine = new ConversionEngine(DcModules.get(getModuleIdx()), getReferencedModule(), getColumnName());
+        engine.setConnection(c);
+        engine.setRange(fromID, toID);
         
-        try {
-            ResultSet rs = DatabaseManager.getInstance().executeSQL(getUser(), sql);
-            
-            while (rs.next()) {
-                String name = rs.getString(1);
-                
-                // check if the referenced item exists
-                DcObject reference = refMod.getItem();
-                reference.setValue(DcProperty._A_NAME, name);
-                
-                List<DcObject> items = new SelectQuery(
-                		getUser(), 
-                		new DataFilter(reference), 
-                		new int[] {DcObject._ID}).run();
-                
-                if (items.size() == 0) {
-                    reference.setIDs();
-                    new InsertQuery(getUser(), reference).run();
-                }
-                
-                String sql2 = "select item.ID, property.ID from " + refMod.getTableName() + " property " +
-                               "inner join " + DcModules.get(getModuleIdx()).getTableName() + " item " +
-                               "on CONVERT(property." + refMod.getField(DcProperty._A_NAME).getDatabaseFieldName() + ",LONGVARCHAR) =" +
-                               "CONVERT(item." + columnName + ",LONGVARCHAR) and item." + columnName + " = '" + name.replaceAll("'", "''") + "'";
-                ResultSet rs2 = DatabaseManager.getInstance().executeSQL(getUser(), sql2);
+        if (isMultiReferenceConversion())
+            engine.toMultipleReferences(getMappingModule());
+        else 
+            engine.toReferences(getNewFieldType() == UIComponents._REFERENCESFIELD ? getMappingModule() : null);
+    }
+    
+    /**
+     * Applies the structural changes after all data has been converted.
+     */
+    protected boolean finish() {
+        if (isMultiReferenceConversion()) {
+            try {
+                DatabaseManager.getInstance().executeAsAdmin("ALTER TABLE " + DcModules.get(getModuleIdx()).getTableName() + " DROP COLUMN " + getColumnName());
+            } catch (Exception e) {
+                logger.error("Failed to create reference. Conversion has failed. Restart Data Crow to try again.", e);
+                return false;
+            }
+        } else {
+            try {
+                if (getNewFieldType() == UIComponents._REFERENCEFIELD) {
+                	DatabaseManager.getInstance().execute(
+                    		getUser(),
+                            "alter table " + DcModules.get(getModuleIdx()).getTableName() + 
+                           " alter column " + columnName + " " + DcModules.get(getModuleIdx()).getField(columnName).getDataBaseFieldType());
+                } 
                 
-                while (rs2.next()) {
-                    String itemID = rs2.getString(1);
-                    String propertyID = rs2.getString(2);
-                    
-                    if (getNewFieldType() == UIComponents._REFERENCESFIELD) {
-                        DcModule mappingMod = DcModules.get(DcModules.getMappingModIdx(
-                                moduleIdx, refMod.getIndex(), DcModules.get(moduleIdx).getField(columnName).getIndex()));
-                        
-                        DcObject mapping = mappingMod.getItem();
-                        mapping.setValue(DcMapping._A_PARENT_ID, itemID);
-                        mapping.setValue(DcMapping._B_REFERENCED_ID, propertyID);
-                        
-                        items = new SelectQuery(getUser(), mapping, null).run();
-                        if (items.size() == 0)
-                            new InsertQuery(getUser(), mapping).run();
-                        
-                    } else {
-                        String sql3 = "update " + DcModules.get(getModuleIdx()).getTableName() +
-                                      " set " + columnName + "=" + propertyID;
-                        DatabaseManager.getInstance().execute(getUser(), sql3);
-                    }
-                }
+                // note that column removal is performed by the cleanup method of the database
                 
-                rs2.close();
+            } catch (Exception e) {
+                logger.error("Failed to clean up after doing the field type conversion.", e);
             }
-
-            rs.close();
-            
-        } catch (Exception e) {
-            logger.error("Failed to create reference. Conversion has failed. Restart Data Crow to try again.", e);
-            return false;
-        }  
-        
-        try {
-            if (getNewFieldType() == UIComponents._REFERENCEFIELD) {
-            	DatabaseManager.getInstance().execute(
-                		getUser(),
-                        "alter table " + DcModules.get(getModuleIdx()).getTableName() + 
-                       " alter column " + columnName + " " + DcModules.get(getModuleIdx()).getField(columnName).getDataBaseFieldType());
-            } 
-            
-            // note that column removal is performed by the cleanup method of the database
-            
-        } catch (Exception e) {
-            logger.error("Failed to clean up after doing the field type conversion.", e);
-        }            
+        }
         
         return true;
     }
     
+    /**
+     * The module referenced by the converted field.
+     */
+    protected DcModule getReferencedModule() {
+        return DcModules.get(moduleIdx + referencingModuleIdx) != null ? DcModules.get(moduleIdx + referencingModuleIdx) : DcModules.get(referencingModuleIdx);
+    }
+    
+    /**
+     * The mapping module of the converted field, in case of a multi-reference field.
+     * @return The mapping module or null.
+     */
+    protected DcModule getMappingModule() {
+        if (getNewFieldType() != UIComponents._REFERENCESFIELD)
+            return null;
+        
+        return DcModules.get(DcModules.getMappingModIdx(
+                moduleIdx, getReferencedModule().getIndex(), DcModules.get(moduleIdx).getField(columnName).getIndex()));
+    }
+    
+    private SecuredUser getUser() {
+    	return SecurityCenter.getInstance().getAdmin();
+    }
+    
     private boolean convertToText() {
         try {
             logger.info("Converting " + columnName + " for module " + DcModules.get(moduleIdx).getName() + " to a text column.");
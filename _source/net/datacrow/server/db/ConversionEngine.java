@@ -0,0 +1,326 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.DcRepository;
+import net.datacrow.core.console.IPollerTask;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.objects.DcField;
+import net.datacrow.core.objects.DcMapping;
+import net.datacrow.core.objects.DcObject;
+import net.datacrow.core.objects.DcProperty;
+import net.datacrow.core.server.Connector;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Executes the data steps of a field conversion as set based statements (INSERT ... SELECT 
+ * and UPDATE ... SELECT) within a single transaction. Either all data is converted or,
+ * in case of an error, nothing is changed. The progress is reported per step.
+ * 
+ * Structural changes (altering and dropping columns) are not part of the transaction; 
+ * these are performed by the {@link Conversion} after the data has been converted.
+ * 
+ * The conversion can be restricted to a range of items (see {@link #setRange(String, String)}) 
+ * which allows the {@link ConversionJob} to convert a module in chunks. The statements 
+ * can safely be repeated for a range which has already been converted.
+ */
+public class ConversionEngine {
+
+    private static Logger logger = Logger.getLogger(ConversionEngine.class.getName());
+    
+    // generates an ID in the same format as the application (lower case UUID)
+    static final String _NEW_ID = 
+            "LOWER(INSERT(INSERT(INSERT(INSERT(RAWTOHEX(UUID()),9,0,'-'),14,0,'-'),19,0,'-'),24,0,'-'))";
+    
+    private final DcModule module;
+    private final DcModule reference;
+    private final String column;
+    
+    private String fromID;
+    private String toID;
+    
+    private Connection connection;
+    
+    private IPollerTask poller;
+    private int step = 0;
+    private int steps;
+    
+    /**
+     * @param module The module of which the field is converted.
+     * @param reference The referenced (property) module.
+     * @param column The column being converted.
+     */
+    public ConversionEngine(DcModule module, DcModule reference, String column) {
+        this.module = module;
+        this.reference = reference;
+        this.column = column;
+    }
+    
+    /**
+     * Restricts the conversion to the items with an ID within the range. The progress
+     * of a restricted conversion is only logged. 
+     * @param fromID The lower bound (exclusive) or null.
+     * @param toID The upper bound (inclusive) or null.
+     */
+    public void setRange(String fromID, String toID) {
+        this.fromID = fromID;
+        this.toID = toID;
+    }
+    
+    /**
+     * Uses the given connection instead of a connection of its own. The connection is expected 
+     * to be used by the caller only; it is in auto commit mode again once a conversion has ended.
+     * It is not closed.
+     */
+    public void setConnection(Connection connection) {
+        this.connection = connection;
+    }
+    
+    /**
+     * Converts the values of the column into references. Missing referenced items are created
+     * based on the distinct values of the column.
+     * @param mapping The mapping module in case of a multi-references field; null in case of a 
+     * single reference field (the column will then contain the IDs of the referenced items).
+     * @throws SQLException 
+     */
+    public void toReferences(DcModule mapping) throws SQLException {
+        String table = module.getTableName();
+        String refTable = reference.getTableName();
+        String name = reference.getField(DcProperty._A_NAME).getDatabaseFieldName();
+        
+        start(2, "Converting " + table + "." + column + " to references of " + refTable);
+        
+        Connection c = begin();
+        try {
+            // values already replaced by a reference (single reference) are skipped 
+            execute(c, "Creating the missing items in " + refTable, 
+                    getReferenceInsert(name) + " FROM (" +
+                    "SELECT DISTINCT CONVERT(ITEM." + column + ",LONGVARCHAR) AS VAL FROM " + table + " ITEM WHERE ITEM." + column + " IS NOT NULL" + 
+                    getRangeCondition() + 
+                    (mapping == null ? " AND CONVERT(ITEM." + column + ",LONGVARCHAR) NOT IN (SELECT ID FROM " + refTable + ")" : "") + ") D " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM " + refTable + " P WHERE CONVERT(P." + name + ",LONGVARCHAR) = D.VAL)");
+            
+            if (mapping != null) {
+                execute(c, "Creating the references in " + mapping.getTableName(), 
+                        getMappingInsert(mapping, "ITEM.ID", "P.ID") + 
+                        " FROM " + table + " ITEM INNER JOIN " + refTable + " P " +
+                        "ON CONVERT(P." + name + ",LONGVARCHAR) = CONVERT(ITEM." + column + ",LONGVARCHAR) " +
+                        "WHERE ITEM." + column + " IS NOT NULL AND " + getMappingExists(mapping, "ITEM.ID", "P.ID") +
+                        getRangeCondition());
+            } else {
+                execute(c, "Replacing the values of " + table + "." + column + " with references", 
+                        "UPDATE " + table + " ITEM SET " + column + " = (SELECT MIN(P.ID) FROM " + refTable + " P " + 
+                        "WHERE CONVERT(P." + name + ",LONGVARCHAR) = CONVERT(ITEM." + column + ",LONGVARCHAR)) " +
+                        "WHERE ITEM." + column + " IS NOT NULL AND EXISTS (SELECT 1 FROM " + refTable + " P " + 
+                        "WHERE CONVERT(P." + name + ",LONGVARCHAR) = CONVERT(ITEM." + column + ",LONGVARCHAR))" +
+                        getRangeCondition());
+            }
+            
+            commit(c);
+        } catch (SQLException se) {
+            rollback(c);
+            throw se;
+        }
+    }
+    
+    /**
+     * Converts the single reference column into references stored in the mapping table.
+     * @param mapping The mapping module of the multi-references field.
+     * @throws SQLException 
+     */
+    public void toMultipleReferences(DcModule mapping) throws SQLException {
+        String table = module.getTableName();
+        String refTable = reference.getTableName();
+        
+        start(1, "Converting " + table + "." + column + " to multiple references of " + refTable);
+        
+        Connection c = begin();
+        try {
+            execute(c, "Creating the references in " + mapping.getTableName(), 
+                    getMappingInsert(mapping, "ITEM.ID", "ITEM." + column) + 
+                    " FROM " + table + " ITEM WHERE ITEM." + column + " IS NOT NULL " +
+                    "AND ITEM." + column + " IN (SELECT " + reference.getField(DcObject._ID).getDatabaseFieldName() + " FROM " + refTable + ") " +
+                    "AND " + getMappingExists(mapping, "ITEM.ID", "ITEM." + column) +
+                    getRangeCondition());
+            
+            commit(c);
+        } catch (SQLException se) {
+            rollback(c);
+            throw se;
+        }
+    }
+    
+    private String getRangeCondition() {
+        return (fromID != null ? " AND ITEM.ID > ?" : "") + (toID != null ? " AND ITEM.ID <= ?" : "");
+    }
+    
+    /**
+     * The insert of a new referenced item holding the value (VAL) as its name. The creation and 
+     * modification dates are set as on a regular insert.
+     */
+    private String getReferenceInsert(String name) {
+        String columns = reference.getField(DcObject._ID).getDatabaseFieldName() + ", " + name;
+        String values = _NEW_ID + ", VAL";
+        
+        DcField field;
+        for (int idx : new int[] {DcObject._SYS_CREATED, DcObject._SYS_MODIFIED}) {
+            field = reference.getField(idx);
+            
+            if (field == null || field.isUiOnly()) continue;
+            
+            columns += ", " + field.getDatabaseFieldName();
+            values += ", " + (field.getValueType() == DcRepository.ValueTypes._DATE ? "CURRENT_DATE" : "CURRENT_TIMESTAMP");
+        }
+        
+        return "INSERT INTO " + reference.getTableName() + " (" + columns + ") SELECT " + values;
+    }
+    
+    private String getMappingInsert(DcModule mapping, String parent, String referenced) {
+        String columns = mapping.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName() + ", " + 
+                         mapping.getField(DcMapping._B_REFERENCED_ID).getDatabaseFieldName();
+        String values = parent + ", " + referenced;
+        
+        DcField id = mapping.getField(DcObject._ID);
+        if (id != null && !id.isUiOnly()) {
+            columns = id.getDatabaseFieldName() + ", " + columns;
+            values = _NEW_ID + ", " + values;
+        }
+        
+        return "INSERT INTO " + mapping.getTableName() + " (" + columns + ") SELECT " + values;
+    }
+    
+    private String getMappingExists(DcModule mapping, String parent, String referenced) {
+        return "NOT EXISTS (SELECT 1 FROM " + mapping.getTableName() + " M WHERE M." + 
+               mapping.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName() + " = " + parent + " AND M." + 
+               mapping.getField(DcMapping._B_REFERENCED_ID).getDatabaseFieldName() + " = " + referenced + ")";
+    }
+    
+    private void start(int steps, String msg) {
+        this.steps = steps;
+        this.step = 0;
+        
+        logger.debug(msg);
+        
+        if (fromID != null || toID != null)
+            return;
+        
+        Connector connector = DcConfig.getInstance().getConnector();
+        poller = connector != null ? connector.getPollerTask(Thread.currentThread(), "Field Conversion") : null;
+        
+        if (poller != null) {
+            poller.start();
+            poller.setText(msg);
+        }
+    }
+    
+    private void execute(Connection c, String msg, String sql) throws SQLException {
+        step++;
+        
+        if (poller != null)
+            poller.setText(msg + " (step " + step + "/" + steps + ")");
+        
+        logger.debug(sql);
+        
+        long start = System.currentTimeMillis();
+        PreparedStatement ps = c.prepareStatement(sql);
+        try {
+            int pos = 1;
+            if (fromID != null) ps.setString(pos++, fromID);
+            if (toID != null) ps.setString(pos++, toID);
+            
+            int count = ps.executeUpdate();
+            
+            String result = msg + " (step " + step + "/" + steps + "): " + count + " rows in " + (System.currentTimeMillis() - start) + "ms";
+            if (fromID != null || toID != null)
+                logger.debug(result);
+            else 
+                logger.info(result);
+        } finally {
+            ps.close();
+        }
+    }
+    
+    private Connection begin() throws SQLException {
+        // a dedicated connection; the shared admin connection stays in auto commit mode
+        Connection c = connection != null ? connection : DatabaseManager.getInstance().createAdminConnection();
+        
+        if (c == null) {
+            if (poller != null) {
+                poller.finished(false);
+                poller = null;
+            }
+            
+            throw new SQLException("Could not connect to the database for the conversion of " + module.getTableName() + "." + column);
+        }
+        
+        c.setAutoCommit(false);
+        return c;
+    }
+    
+    private void commit(Connection c) throws SQLException {
+        try {
+            c.commit();
+        } finally {
+            end(c, true);
+        }
+    }
+    
+    private void rollback(Connection c) {
+        try {
+            c.rollback();
+            logger.info("The conversion has been rolled back");
+        } catch (SQLException se) {
+            logger.error("The conversion could not be rolled back", se);
+        } finally {
+            end(c, false);
+        }
+    }
+    
+    private void end(Connection c, boolean success) {
+        try {
+            if (c == connection)
+                c.setAutoCommit(true);
+            else 
+                c.close();
+        } catch (SQLException se) {
+            logger.error("Error while releasing the connection", se);
+        }
+        
+        ModuleVersions.getInstance().invalidateAll();
+        KeyCache.getInstance().clear();
+        
+        if (poller != null) {
+            poller.finished(success);
+            poller = null;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.console.IPollerTask;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.server.Connector;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Executes the conversions in the background while the database is in use. 
+ * 
+ * The items of a module are converted in chunks of {@link #_CHUNK_SIZE} items, each chunk in
+ * its own transaction. A pause between the chunks keeps the load on the database acceptable. 
+ * After every chunk a checkpoint is stored; when the server is stopped (or crashes) during a 
+ * conversion, the conversion is resumed from the last checkpoint on the next start.
+ * 
+ * The modules being converted (and their mapping modules) are read-only while the conversion runs.
+ */
+public class ConversionJob extends Thread {
+
+    private static Logger logger = Logger.getLogger(ConversionJob.class.getName());
+    
+    private static final int _CHUNK_SIZE = 1000;
+    private static final int _PAUSE = 100;
+    
+    private static final Collection<Integer> readOnly = new HashSet<Integer>();
+    
+    private final List<Conversion> conversions;
+    private final Conversions owner;
+    
+    private final Properties checkpoints;
+    
+    private volatile String progress = "Waiting";
+    private volatile boolean finished = false;
+    private volatile boolean success = true;
+    private volatile boolean converted = false;
+    
+    private Connection connection;
+    
+    /**
+     * @param owner The conversions which are notified once all conversions have been executed.
+     * @param conversions The conversions to be executed.
+     */
+    public ConversionJob(Conversions owner, Collection<Conversion> conversions) {
+        super("conversionJob");
+        
+        this.owner = owner;
+        this.conversions = new ArrayList<Conversion>(conversions);
+        
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+        
+        checkpoints = loadCheckpoints();
+        
+        // lock the modules right away; the job might not start immediately
+        for (Conversion conversion : this.conversions)
+            lock(conversion, true);
+    }
+    
+    /**
+     * Indicates if the module is read-only because of a running conversion.
+     * @param module The module index.
+     */
+    public static boolean isReadOnly(int module) {
+        synchronized (readOnly) {
+            return readOnly.contains(Integer.valueOf(module));
+        }
+    }
+    
+    /**
+     * A description of the current progress.
+     */
+    public String getProgress() {
+        return progress;
+    }
+    
+    public boolean isFinished() {
+        return finished;
+    }
+    
+    /**
+     * Indicates if all conversions have succeeded (so far).
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+    
+    /**
+     * Indicates if there is a checkpoint for the conversion; it has been started before
+     * but was not completed.
+     */
+    protected static boolean isStarted(Conversion conversion) {
+        return loadCheckpoints().containsKey(conversion.toString());
+    }
+    
+    /**
+     * Indicates if there are checkpoints of conversions which have not been completed.
+     */
+    protected static boolean hasCheckpoints() {
+        return !loadCheckpoints().isEmpty();
+    }
+    
+    @Override
+    public void run() {
+        Connector connector = DcConfig.getInstance().getConnector();
+        IPollerTask poller = connector != null ? connector.getPollerTask(this, "Field Conversion") : null;
+        
+        if (poller != null)
+            poller.start();
+        
+        try {
+            // a connection of its own; the shared admin connection is used by the other processes
+            connection = DatabaseManager.getInstance().createAdminConnection();
+            
+            if (connection == null) {
+                success = false;
+                logger.error("Could not connect to the database; the conversions will be resumed on the next start");
+                return;
+            }
+            
+            int counter = 1;
+            for (Conversion conversion : conversions) {
+                String description = "Conversion " + (counter++) + "/" + conversions.size() + " (" + 
+                                     DcModules.get(conversion.getModuleIdx()).getTableName() + "." + conversion.getColumnName() + ")";
+                
+                try {
+                    if (conversion.isReferenceConversion())
+                        success &= convert(conversion, description, poller);
+                    else 
+                        success &= conversion.execute();
+                    
+                    converted = true;
+                } catch (Exception e) {
+                    success = false;
+                    logger.error(description + " has failed; it will be resumed on the next start", e);
+                }
+            }
+            
+            if (success && converted)
+                owner.archive();
+            
+        } finally {
+            try {
+                if (connection != null) connection.close();
+            } catch (SQLException se) {
+                logger.error("Error while closing connection", se);
+            }
+            
+            connection = null;
+            
+            for (Conversion conversion : conversions)
+                lock(conversion, false);
+            
+            ModuleVersions.getInstance().invalidateAll();
+            KeyCache.getInstance().clear();
+            
+            progress = success ? "Finished" : "Failed";
+            finished = true;
+            
+            if (poller != null)
+                poller.finished(success);
+        }
+    }
+    
+    private boolean convert(Conversion conversion, String description, IPollerTask poller) throws SQLException, InterruptedException {
+        String key = conversion.toString();
+        String last = checkpoints.getProperty(key);
+        
+        DcModule module = DcModules.get(conversion.getModuleIdx());
+        int total = count(module, null, false);
+        int processed = last == null ? 0 : count(module, last, true);
+        
+        logger.info(description + (last == null ? " started" : " resumed at item " + processed) + "; " + total + " items to convert");
+        
+        String[] chunk;
+        while ((chunk = getNextChunk(module, last)) != null) {
+            conversion.convert(connection, last, chunk[0]);
+            
+            last = chunk[0];
+            processed += Integer.parseInt(chunk[1]);
+            
+            checkpoints.setProperty(key, last);
+            saveCheckpoints();
+            
+            progress = description + ": " + processed + "/" + total + " items converted";
+            if (poller != null) poller.setText(progress);
+            
+            sleep(_PAUSE);
+        }
+        
+        boolean finished = conversion.finish();
+        
+        checkpoints.remove(key);
+        saveCheckpoints();
+        
+        logger.info(description + " completed");
+        
+        return finished;
+    }
+    
+    /**
+     * Determines the upper bound of the next chunk of items.
+     * @return The last ID and the size of the chunk or null if there are no more items.
+     */
+    private String[] getNextChunk(DcModule module, String last) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(
+                "SELECT MAX(ID), COUNT(*) FROM (SELECT ID FROM " + module.getTableName() + 
+                (last != null ? " WHERE ID > ?" : "") + " ORDER BY ID LIMIT " + _CHUNK_SIZE + ") X");
+        
+        ResultSet rs = null;
+        try {
+            if (last != null)
+                ps.setString(1, last);
+            
+            rs = ps.executeQuery();
+            
+            String[] chunk = null;
+            if (rs.next() && rs.getInt(2) > 0)
+                chunk = new String[] {rs.getString(1), String.valueOf(rs.getInt(2))};
+            
+            return chunk;
+        } finally {
+            if (rs != null) rs.close();
+            ps.close();
+        }
+    }
+    
+    private int count(DcModule module, String ID, boolean upToID) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(
+                "SELECT COUNT(*) FROM " + module.getTableName() + (upToID ? " WHERE ID <= ?" : ""));
+        
+        ResultSet rs = null;
+        try {
+            if (upToID)
+                ps.setString(1, ID);
+            
+            rs = ps.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        } finally {
+            if (rs != null) rs.close();
+            ps.close();
+        }
+    }
+    
+    private void lock(Conversion conversion, boolean lock) {
+        Collection<Integer> modules = new ArrayList<Integer>();
+        modules.add(Integer.valueOf(conversion.getModuleIdx()));
+        
+        if (conversion.isReferenceConversion()) {
+            DcModule mapping = conversion.getMappingModule();
+            if (mapping != null)
+                modules.add(Integer.valueOf(mapping.getIndex()));
+        }
+        
+        synchronized (readOnly) {
+            if (lock)
+                readOnly.addAll(modules);
+            else 
+                readOnly.removeAll(modules);
+        }
+    }
+    
+    private static File getCheckpointFile() {
+        return new File(DcConfig.getInstance().getUpgradeDir(), "conversions.checkpoint");
+    }
+    
+    private static Properties loadCheckpoints() {
+        Properties checkpoints = new Properties();
+        File checkpointFile = getCheckpointFile();
+        
+        if (!checkpointFile.exists())
+            return checkpoints;
+        
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(checkpointFile);
+            checkpoints.load(fis);
+        } catch (IOException e) {
+            logger.error("Failed to load the conversion checkpoints", e);
+        } finally {
+            try {
+                if (fis != null) fis.close();
+            } catch (IOException e) {
+                logger.error("Could not release checkpoint file " + checkpointFile, e);
+            }
+        }
+        
+        return checkpoints;
+    }
+    
+    private void saveCheckpoints() {
+        File checkpointFile = getCheckpointFile();
+        
+        if (checkpoints.isEmpty()) {
+            if (checkpointFile.exists() && !checkpointFile.delete())
+                logger.warn("Could not delete checkpoint file " + checkpointFile);
+            
+            return;
+        }
+        
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(checkpointFile);
+            checkpoints.store(fos, "Last converted item per conversion");
+        } catch (IOException e) {
+            logger.error("Failed to persist the conversion checkpoints", e);
+        } finally {
+            try {
+                if (fos != null) fos.close();
+            } catch (IOException e) {
+                logger.error("Could not release checkpoint file " + checkpointFile, e);
+            }
+        }
+    }
+}
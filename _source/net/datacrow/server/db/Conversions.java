@@ -56,6 +56,7 @@ public class Conversions {
     private static Logger logger = Logger.getLogger(Conversions.class.getName());
 
     private Collection<Conversion> conversions = new ArrayList<Conversion>();
+    private ConversionJob job;
     private String filename = DcConfig.getInstance().getUpgradeDir() + "conversions.properties";
     
     public Conversions() {}
@@ -86,6 +87,13 @@ public class Conversions {
         }
     }
     
+    /**
+     * Indicates if there are no conversions to be executed.
+     */
+    public boolean isEmpty() {
+        return conversions.isEmpty();
+    }
+    
     public void add(Conversion conversion) {
         conversions.add(conversion);
     }
@@ -126,16 +134,57 @@ public class Conversions {
         }
     }
     
-    public void execute() {
-        boolean converted = false;
+    /**
+     * Executes the needed conversions in the background (see {@link ConversionJob}). 
+     * The database can be used while the conversions run; the affected modules are read-only.
+     * @return The started job or null if there is nothing to convert.
+     */
+    public ConversionJob executeInBackground() {
+        Collection<Conversion> needed = new ArrayList<Conversion>();
+        
         for (Conversion conversion : conversions) {
-            if (conversion.isNeeded()) 
-                converted |= conversion.execute();
+            // conversions which have been started before are resumed 
+            if (ConversionJob.isStarted(conversion) || conversion.isNeeded())
+                needed.add(conversion);
         }
         
-        // rename the old file
+        if (needed.isEmpty())
+            return null;
+        
+        this.job = new ConversionJob(this, needed);
+        this.job.start();
+        return this.job;
+    }
+    
+    /**
+     * The running (or last) background conversion job.
+     * @return The job or null.
+     */
+    public ConversionJob getJob() {
+        return job;
+    }
+    
+    /**
+     * Indicates if a background conversion job is running.
+     */
+    public boolean isRunning() {
+        return job != null && !job.isFinished();
+    }
+    
+    /**
+     * Indicates if conversions still have to be completed: the last background conversion 
+     * job has failed or a conversion has been left unfinished (see {@link ConversionJob}).
+     */
+    public boolean isPending() {
+        return ConversionJob.hasCheckpoints() || (job != null && !job.isSuccess());
+    }
+    
+    /**
+     * Renames the conversion file once the conversions have been executed.
+     */
+    protected void archive() {
         File file = new File(filename);
-        if (converted && file.exists()) {
+        if (file.exists()) {
             SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
             String prefix = sdf.format(new Date()) + "_";
             File newFile = new File(file.getParent(), prefix + file.getName());
@@ -67,7 +67,7 @@ public class CreateQuery extends Query {
             }
         }
         
-        String sql = "CREATE MEMORY TABLE " + module.getTableName() + "\r\n(" + columns + ");";
+        String sql = "CREATE " + StoragePolicy.getInstance().getTableType(module) + " TABLE " + module.getTableName() + "\r\n(" + columns + ");";
         
         try { 
             conn = DatabaseManager.getInstance().getAdminConnection();
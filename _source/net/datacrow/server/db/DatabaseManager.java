@@ -29,13 +29,20 @@ package net.datacrow.server.db;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLInvalidAuthorizationSpecException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.datacrow.core.DcConfig;
@@ -50,6 +57,7 @@ import net.datacrow.core.objects.helpers.User;
 import net.datacrow.core.security.SecuredUser;
 import net.datacrow.core.server.Connector;
 import net.datacrow.core.utilities.CoreUtilities;
+import net.datacrow.server.data.CountCache;
 import net.datacrow.server.data.DataManager;
 import net.datacrow.server.security.SecurityCenter;
 import net.datacrow.server.upgrade.SystemUpgradeException;
@@ -79,6 +87,8 @@ public class DatabaseManager {
     
     private Connection adminConnection;
     private Connection checkConnection;
+    
+    private int queryWorkers = 1;
    
     /**
      * Retrieves the sole instance of this class
@@ -109,14 +119,22 @@ public class DatabaseManager {
                 logger.debug("Initialization of the database (DcDatabase) took " + (end - start) + "ms");
             }  
             
+            if (db.isUnchanged()) {
+                checkConnection = getConnection("DC_ADMIN", "UK*SOCCER*96");
+                StoragePolicy.getInstance().startWatching();
+                initialized = true;
+                return;
+            }
+            
             start = logger.isDebugEnabled() ? new Date().getTime() : 0;
             
+            // the conversions are executed in the background; the affected modules are read-only meanwhile
             db.getConversions().load();
-            db.getConversions().execute();
+            db.getConversions().executeInBackground();
 
             if (logger.isDebugEnabled()) {
                 long end = new Date().getTime();
-                logger.debug("Execution of the database conversion scripts took " + (end - start) + "ms");
+                logger.debug("Starting the database conversion scripts took " + (end - start) + "ms");
             }  
 
             start = logger.isDebugEnabled() ? new Date().getTime() : 0;
@@ -129,6 +147,7 @@ public class DatabaseManager {
             }  
             
             checkConnection = getConnection("DC_ADMIN", "UK*SOCCER*96");
+            StoragePolicy.getInstance().startWatching();
             initialized = true;
 
         } catch (SystemUpgradeException sue) {
@@ -176,6 +195,102 @@ public class DatabaseManager {
     	return db.getQueueSize();
     }
     
+    /**
+     * Retrieves the query queue (for its statistics).
+     */
+    public QueryQueue getQueryQueue() {
+        return db.getQueryQueue();
+    }
+    
+    /**
+     * Waits until all queued queries have been executed.
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return False if the time out elapsed before all queries were executed.
+     */
+    public boolean flush(long timeout) {
+        QueryQueue queue = db.getQueryQueue();
+        
+        try {
+            return queue == null || queue.flush(timeout);
+        } catch (InterruptedException ie) {
+            logger.warn("Interrupted while waiting for the query queue to be flushed", ie);
+            return false;
+        }
+    }
+    
+    /**
+     * Reads the storage policy again and converts the tables to the table types (MEMORY or CACHED) 
+     * configured in it. This can be done while the database is in use. Called automatically 
+     * when the storage.properties file has been changed.
+     * @return The number of converted tables.
+     */
+    public int convertTableTypes() {
+        Connection c = getAdminConnection();
+        
+        if (c == null) return 0;
+        
+        StoragePolicy policy = StoragePolicy.getInstance();
+        policy.reload();
+        policy.apply(c);
+        return policy.convert(c);
+    }
+    
+    /**
+     * The name of the database; the base name of the database files.
+     */
+    public String getName() {
+        return db.getName();
+    }
+    
+    /**
+     * Writes a consistent copy of the database files to the given directory while the database 
+     * stays in use (BACKUP DATABASE ... NOT BLOCKING). Queued changes are stored first.
+     * @param directory The target directory.
+     */
+    public void backup(File directory) throws SQLException {
+        if (!flush(60000))
+            logger.warn("Not all queued queries could be executed before the backup was started");
+        
+        directory.mkdirs();
+        
+        String target = directory.toString().replace('\\', '/');
+        target = target.endsWith("/") ? target : target + "/";
+        target = target.replace("'", "''");
+        
+        // a dedicated connection; the shared admin connection remains available during the backup
+        Connection c = createAdminConnection();
+        boolean dedicated = c != null;
+        c = dedicated ? c : getAdminConnection();
+        
+        Statement stmt = c.createStatement();
+        try {
+            try {
+                stmt.execute("BACKUP DATABASE TO '" + target + "' NOT BLOCKING AS FILES");
+            } catch (SQLException se) {
+                logger.warn("The non blocking backup failed, the database is backed up in blocking mode instead", se);
+                stmt.execute("BACKUP DATABASE TO '" + target + "' BLOCKING AS FILES");
+            }
+            
+            logger.info("The database has been backed up to " + directory);
+        } finally {
+            stmt.close();
+            if (dedicated) c.close();
+        }
+    }
+    
+    public int getQueryWorkers() {
+        return queryWorkers;
+    }
+    
+    /**
+     * Sets the number of threads executing the queued queries. The queue is partitioned by module;
+     * the order of the queries is only guaranteed within a module when more than one worker is used.
+     * Must be set before the database is initialized.
+     */
+    public void setQueryWorkers(int queryWorkers) {
+        this.queryWorkers = queryWorkers;
+    }
+    
     /**
      * Apply settings on the databases. 
      */
@@ -198,6 +313,11 @@ public class DatabaseManager {
         try {
             if (db != null) {
                 
+                StoragePolicy.getInstance().stopWatching();
+                
+                if (!flush(60000))
+                    logger.warn("Not all queued queries could be executed before closing the database");
+                
                 // calculates the conversions based on the alter module wizard
                 Conversions conversions = db.getConversions();
                 conversions.calculate();
@@ -205,6 +325,11 @@ public class DatabaseManager {
                 
                 Connection c = getAdminConnection();
                 
+                // only a database which has been fully initialized can be skipped at the next start;
+                // failed or unfinished conversions are to be resumed by the full start up
+                if (c != null && initialized && conversions.isEmpty() && !conversions.isRunning() && !conversions.isPending())
+                    db.saveFingerprint(c);
+                
                 try {
                 	if (checkConnection != null)
                 		checkConnection.close();
@@ -226,6 +351,13 @@ public class DatabaseManager {
                 
                 // just to make sure the database is really released..
                 org.hsqldb.DatabaseManager.closeDatabases(0);
+                
+                ModuleVersions.getInstance().invalidateAll();
+                KeyCache.getInstance().clear();
+                CountCache.getInstance().clear();
+                
+                if (QueryStatistics.getInstance().isEnabled())
+                    logger.info(QueryStatistics.getInstance().getReport(50));
             }
         } catch (Exception exp) {
             logger.error("Error while closing the database (compact = " + compact + ")", exp);
@@ -252,6 +384,7 @@ public class DatabaseManager {
      * Returns a new connection to the database based on the logged on user.
      */
 	public Connection getConnection(SecuredUser su) {
+	    long start = System.nanoTime();
     	
     	Connection connection = connections.get(su.getUser().getID());
     	
@@ -275,6 +408,7 @@ public class DatabaseManager {
             }
         }
         
+        QueryStatistics.getInstance().connectionAcquired(System.nanoTime() - start);
         return connection;
     }
 	
@@ -352,7 +486,7 @@ public class DatabaseManager {
             address = "jdbc:hsqldb:file:" + DcConfig.getInstance().getDatabaseDir() + name;
             Connection c = DriverManager.getConnection(address, username.toUpperCase(), password);
             c.setAutoCommit(true);
-            return c;
+            return InstrumentedConnection.instrument(c, username);
             
         } catch (SQLException e) {
         	if (e.getErrorCode() == ErrorCode.ACCESS_IS_DENIED ||
@@ -376,9 +510,18 @@ public class DatabaseManager {
         	DataFilterConverter dfc = new DataFilterConverter(df);
         	String sql = dfc.toSQL(new int[] {DcObject._ID}, true, false);
         	
+        	KeyCache cache = KeyCache.getInstance();
+        	Map<String, Integer> cached = cache.get(su, sql);
+        	if (cached != null)
+        	    return cached;
+        	
         	if (logger.isDebugEnabled())
         		logger.debug(sql);
         	
+        	// take the snapshot before querying; changes made while querying will invalidate the result 
+        	ModuleVersions.Snapshot snapshot = ModuleVersions.getInstance().getSnapshot(df.getModule());
+        	
+        	long start = System.currentTimeMillis();
             ResultSet rs = executeSQL(su, sql);
             
             int moduleIdx;
@@ -392,6 +535,10 @@ public class DatabaseManager {
             }
             
             rs.close();
+            
+            SlowQueryLog.getInstance().log(getConnection(su), su, sql, null, System.currentTimeMillis() - start, data.size());
+            
+            cache.put(su, sql, snapshot, data);
         } catch (SQLException e) {
             if (!e.getMessage().equals("No ResultSet was produced"))
                 logger.error("Error while executing query", e);
@@ -425,6 +572,10 @@ public class DatabaseManager {
             stmt = c.createStatement();
             success = stmt.execute(sql);
         } finally {
+            // the affected tables are unknown
+            ModuleVersions.getInstance().invalidateAll();
+            KeyCache.getInstance().clear();
+            
             try {
                 if (stmt != null) stmt.close();
             } catch (Exception e) {
@@ -461,6 +612,9 @@ public class DatabaseManager {
             stmt = c.createStatement();
             stmt.execute(sql);
         } finally {
+            ModuleVersions.getInstance().invalidateAll();
+            KeyCache.getInstance().clear();
+            
             try {
                 if (stmt != null) stmt.close();
             } catch (Exception e) {
@@ -475,7 +629,7 @@ public class DatabaseManager {
      */
     public boolean update(SecuredUser su, DcObject dco, boolean queued) {
         boolean success = false;
-        if (dco.isChanged()) {
+        if (dco.isChanged() && !isReadOnly(dco)) {
             UpdateQuery query = new UpdateQuery(su, dco);
             if (queued) {
                 db.queue(query);
@@ -493,6 +647,9 @@ public class DatabaseManager {
      * @param dco
      */
     public boolean insert(SecuredUser su, DcObject dco, boolean queued) {
+        if (isReadOnly(dco))
+            return false;
+        
         Query query = new InsertQuery(su, dco);
         
         boolean success = false;
@@ -508,6 +665,9 @@ public class DatabaseManager {
     }
 
     public boolean delete(SecuredUser su, DcObject dco, boolean queued) {
+        if (isReadOnly(dco))
+            return false;
+        
         Query query = new DeleteQuery(su, dco);
         
         boolean success = false;
@@ -521,6 +681,96 @@ public class DatabaseManager {
         
         return success;
     }
+    
+    /**
+     * Deletes all items matching the filter, including their loans, children, pictures 
+     * and the references to these items, within a single transaction.
+     * @see BulkDeleteQuery
+     * @return The number of deleted items.
+     */
+    public int delete(SecuredUser su, DataFilter df) {
+        BulkDeleteQuery query = new BulkDeleteQuery(su, df);
+        query.run();
+        
+        int count = query.getCount();
+        query.clear();
+        return count;
+    }
+    
+    /**
+     * Sets the value of a field for all items matching the filter within a single transaction.
+     * @see BulkUpdateQuery
+     * @param field The index of the field to update.
+     * @param value The new value.
+     * @return The number of updated items.
+     */
+    public int update(SecuredUser su, DataFilter df, int field, Object value) {
+        BulkUpdateQuery query = new BulkUpdateQuery(su, df, field, value);
+        query.run();
+        
+        int count = query.getCount();
+        query.clear();
+        return count;
+    }
+    
+    /**
+     * Queues the update of the item. The returned future completes with the success 
+     * indicator of the update or exceptionally with the exception which caused the update to fail.
+     * Items without changes are not updated; the future then completes with false right away.
+     * @param dco
+     */
+    public CompletableFuture<Boolean> updateAsync(SecuredUser su, DcObject dco) {
+        if (!dco.isChanged() || isReadOnly(dco))
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        
+        return db.queue(new UpdateQuery(su, dco));
+    }
+
+    /**
+     * Queues the insert of the item. The returned future completes with the success 
+     * indicator of the insert or exceptionally with the exception which caused the insert to fail.
+     * @param dco
+     */
+    public CompletableFuture<Boolean> insertAsync(SecuredUser su, DcObject dco) {
+        if (isReadOnly(dco))
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        
+        return db.queue(new InsertQuery(su, dco));
+    }
+    
+    /**
+     * Queues the removal of the item. The returned future completes with the success 
+     * indicator of the delete or exceptionally with the exception which caused the delete to fail.
+     * @param dco
+     */
+    public CompletableFuture<Boolean> deleteAsync(SecuredUser su, DcObject dco) {
+        if (isReadOnly(dco))
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        
+        return db.queue(new DeleteQuery(su, dco));
+    }
+    
+    /**
+     * Checks whether the module of the item is read-only because of a running conversion.
+     * @param dco
+     */
+    private boolean isReadOnly(DcObject dco) {
+        boolean readOnly = ConversionJob.isReadOnly(dco.getModule().getIndex());
+        
+        if (readOnly)
+            logger.warn("The item " + dco.getID() + " could not be saved; module " + dco.getModule().getTableName() + 
+                        " is read-only while its data is being converted");
+        
+        return readOnly;
+    }
+    
+    /**
+     * Retrieves the background conversion job.
+     * @return The running or last conversion job or null when no conversions have been executed.
+     */
+    public ConversionJob getConversionJob() {
+        return db.getConversions().getJob();
+    }
 
     /**
      * Checks the database to see if the item already exists.
@@ -561,18 +811,34 @@ public class DatabaseManager {
     /**
      * Creates an admin connection to the database.
      */
-    public synchronized Connection getAdminConnection() {
-        if (isClosed(adminConnection)) {
-            adminConnection = getConnection("DC_ADMIN", "UK*SOCCER*96");
-            logger.debug("Created a new, admin, database connection");
-        }
+    public Connection getAdminConnection() {
+        long start = System.nanoTime();
         
-        // Do not store this connection.
-        // This is only needed when the default admin user has not been created
-        if (adminConnection == null)
-        	return getConnection("SA", "");
-
-        return adminConnection;
+        synchronized (this) {
+            if (isClosed(adminConnection)) {
+                adminConnection = getConnection("DC_ADMIN", "UK*SOCCER*96");
+                logger.debug("Created a new, admin, database connection");
+            }
+            
+            QueryStatistics.getInstance().connectionAcquired(System.nanoTime() - start);
+            
+            // Do not store this connection.
+            // This is only needed when the default admin user has not been created
+            if (adminConnection == null)
+            	return getConnection("SA", "");
+    
+            return adminConnection;
+        }
+    }
+    
+    /**
+     * Creates a new admin connection which is not shared with any other process. To be used for 
+     * work which runs in its own transaction. The caller is responsible for closing the connection.
+     * @return The connection or null if the database could not be connected to.
+     */
+    public Connection createAdminConnection() {
+        Connection c = getConnection("DC_ADMIN", "UK*SOCCER*96");
+        return c != null ? c : getConnection("SA", "");
     }
     
     /**
@@ -672,8 +938,12 @@ public class DatabaseManager {
         
         long start = logger.isDebugEnabled() ? new Date().getTime() : 0;
         
-        for (DcModule module : DcModules.getAllModules())
-            setPriviliges(module, user);
+        if (user != null)
+            setPriviliges(getModules(), (String) user.getValue(User._A_LOGINNAME), user.isAdmin());
+        
+        // cached keys are stored per user and might no longer be accessible
+        ModuleVersions.getInstance().invalidateAll();
+        KeyCache.getInstance().clear();
         
         if (logger.isDebugEnabled()) {
             long end = new Date().getTime();
@@ -687,8 +957,10 @@ public class DatabaseManager {
      * @param admin Indicates if the user is an administrator.
      */
     public void setPriviliges(String user, boolean admin) {
-        for (DcModule module : DcModules.getAllModules())
-            setPriviliges(module, user, admin);
+        setPriviliges(getModules(), user, admin);
+        
+        ModuleVersions.getInstance().invalidateAll();
+        KeyCache.getInstance().clear();
     }
     
     protected void setPriviliges(DcModule module, User user) {
@@ -704,54 +976,119 @@ public class DatabaseManager {
      * @param admin
      */
     protected void setPriviliges(DcModule module, String user, boolean admin) {
+        Collection<DcModule> modules = new ArrayList<DcModule>();
+        modules.add(module);
+        setPriviliges(modules, user, admin);
+    }
+    
+    private Collection<DcModule> getModules() {
+        Collection<DcModule> modules = new ArrayList<DcModule>();
+        for (DcModule module : DcModules.getAllModules())
+            modules.add(module);
+        
+        return modules;
+    }
+    
+    /**
+     * Applies the users privileges on the tables of the specified modules. The desired privileges 
+     * are compared with the current privileges (as registered in INFORMATION_SCHEMA.TABLE_PRIVILEGES).
+     * The privileges of the tables which differ are revoked and granted again, in a single batch.
+     * Should the batch fail the statements are executed one by one.
+     * @param modules
+     * @param user
+     * @param admin
+     */
+    private void setPriviliges(Collection<DcModule> modules, String user, boolean admin) {
 
        Connection c = null;
        Statement stmt = null;
        
        try {
-            String tablename = module.getTableName();
+            c = getAdminConnection();
             
-            if (tablename == null || tablename.trim().length() == 0)
-                return;
+            SchemaCatalog catalog = new SchemaCatalog(c);
+            Map<String, Collection<String>> current = getPriviliges(c, user);
             
-            c = getAdminConnection();
             stmt = c.createStatement();
-
-            // check if the table exists
-            boolean created = false;
-            try {
-                String sql = "SELECT TOP 1 * from " + tablename;
-                stmt.execute(sql);
-                created = true;
-            } catch (SQLException se) {
-                logger.debug("Table " + tablename + " has not yet been created, will not set priviliges");
-            }
             
-            if (created) {
-                String sql = "REVOKE ALL PRIVILEGES ON TABLE " + tablename + " FROM " + user + " RESTRICT";
-                stmt.execute(sql);
+            List<String> statements = new ArrayList<String>();
+            String tablename;
+            Collection<String> granted;
+            Collection<String> desired;
+            StringBuffer privileges;
+            for (DcModule module : modules) {
+                tablename = module.getTableName();
+                
+                if (tablename == null || tablename.trim().length() == 0)
+                    continue;
+                
+                // check if the table exists
+                if (!catalog.exists(tablename)) {
+                    logger.debug("Table " + tablename + " has not yet been created, will not set priviliges");
+                    continue;
+                }
+                
+                granted = current.get(tablename.toUpperCase());
+                if (granted == null)
+                    granted = new HashSet<String>();
+                
+                desired = new HashSet<String>();
+                desired.add("SELECT");
                 
                 if (admin) {
-                    sql = "GRANT ALL ON TABLE " + tablename + " TO " + user;
-                    stmt.execute(sql);
-    
-                } else {
-                    sql = "GRANT SELECT ON TABLE " + tablename + " TO " + user;
-                    stmt.execute(sql);
+                    desired.add("INSERT");
+                    desired.add("UPDATE");
+                    desired.add("DELETE");
                     
-                    if (module.isEditingAllowed()) {
-                        sql = "GRANT UPDATE ON TABLE " + tablename + " TO " + user;
-                        stmt.execute(sql);
-                        sql = "GRANT INSERT ON TABLE " + tablename + " TO " + user;
-                        stmt.execute(sql);
-                    }
+                    if (!granted.containsAll(desired))
+                        statements.add("GRANT ALL ON TABLE " + tablename + " TO " + user);
+                    
+                    continue;
+                } 
+                    
+                if (module.isEditingAllowed()) {
+                    desired.add("UPDATE");
+                    desired.add("INSERT");
+                }
+                
+                if (module.getIndex() == DcModules._PICTURE || module.getType() == DcModule._TYPE_MAPPING_MODULE)
+                    desired.add("DELETE");
+                
+                // not all privileges can be revoked individually (TRIGGER, as granted by GRANT ALL); 
+                // the privileges are therefore revoked as a whole and granted again
+                if (!granted.equals(desired)) {
+                    privileges = new StringBuffer();
+                    for (String privilege : desired)
+                        privileges.append(privileges.length() > 0 ? ", " : "").append(privilege);
                     
-                    if (admin || module.getIndex() == DcModules._PICTURE || module.getType() == DcModule._TYPE_MAPPING_MODULE) {
-                        sql = "GRANT DELETE ON TABLE " + tablename + " TO " + user;
-                        stmt.execute(sql);
+                    statements.add("REVOKE ALL PRIVILEGES ON TABLE " + tablename + " FROM " + user + " RESTRICT");
+                    statements.add("GRANT " + privileges + " ON TABLE " + tablename + " TO " + user);
+                }
+            }
+            
+            if (statements.size() > 0) {
+                try {
+                    for (String sql : statements)
+                        stmt.addBatch(sql);
+                    
+                    stmt.executeBatch();
+                } catch (SQLException se) {
+                    logger.warn("The privileges of " + user + " could not be set in a single batch, " + 
+                                "the statements are executed one by one", se);
+                    
+                    // the statements can safely be executed more than once
+                    for (String sql : statements) {
+                        try {
+                            stmt.execute(sql);
+                        } catch (SQLException e) {
+                            logger.error("Could not execute " + sql, e);
+                        }
                     }
                 }
             }
+            
+            logger.debug("Privileges of " + user + " synchronized with " + statements.size() + " statements");
+            
         } catch (SQLException se) {
             logger.error(se, se);
         } finally {
@@ -761,6 +1098,47 @@ public class DatabaseManager {
                 logger.debug("Failed to release database resources", e);
             }
         }
-    }    
+    }
+    
+    /**
+     * Retrieves the privileges currently granted to the user per table.
+     * @param c An admin connection.
+     * @param user
+     */
+    private Map<String, Collection<String>> getPriviliges(Connection c, String user) throws SQLException {
+        Map<String, Collection<String>> priviliges = new HashMap<String, Collection<String>>();
+        
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = c.prepareStatement(
+                    "SELECT TABLE_NAME, PRIVILEGE_TYPE FROM INFORMATION_SCHEMA.TABLE_PRIVILEGES " +
+                    "WHERE TABLE_SCHEMA = 'PUBLIC' AND GRANTEE = ?");
+            ps.setString(1, user.toUpperCase());
+            rs = ps.executeQuery();
+            
+            String table;
+            Collection<String> granted;
+            while (rs.next()) {
+                table = rs.getString(1).toUpperCase();
+                granted = priviliges.get(table);
+                if (granted == null) {
+                    granted = new HashSet<String>();
+                    priviliges.put(table, granted);
+                }
+                
+                granted.add(rs.getString(2).toUpperCase());
+            }
+        } finally {
+            try {
+                if (rs != null) rs.close();
+                if (ps != null) ps.close();
+            } catch (Exception e) {
+                logger.debug("Failed to release database resources", e);
+            }
+        }
+        
+        return priviliges;
+    }
 }
 
@@ -28,10 +28,9 @@ package net.datacrow.server.db;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Types;
+import java.util.concurrent.CompletableFuture;
 
 import net.datacrow.core.DcConfig;
 import net.datacrow.core.DcRepository;
@@ -62,12 +61,34 @@ public class DcDatabase {
 
     private Conversions conversions = new Conversions();
     
+    private boolean unchanged = false;
+    private String user;
+    
     public DcDatabase() {}
     
     protected Conversions getConversions() {
         return conversions;
     }
     
+    /**
+     * Indicates if the database and the module definitions are unchanged since the last
+     * graceful shutdown (see {@link SchemaFingerprint}). The upgrade and validation steps
+     * have been skipped.
+     */
+    protected boolean isUnchanged() {
+        return unchanged;
+    }
+    
+    /**
+     * Stores the fingerprint of the database and the module definitions. Should only be 
+     * called when the database is closed gracefully.
+     * @param connection
+     */
+    protected void saveFingerprint(Connection connection) {
+        if (user != null)
+            new SchemaFingerprint(getName()).save(connection, user);
+    }
+    
     /**
      * The version from before the upgrade.
      */
@@ -143,6 +164,18 @@ public class DcDatabase {
         	throw new DatabaseInvalidException("The database is invalid. Data Crow "
         			+ "could not connect to the database.");
         
+        user = DcConfig.getInstance().getConnector().getUser().getUsername();
+        unchanged = !isNew() && new SchemaFingerprint(getName()).matches(connection, user);
+        
+        if (unchanged) {
+            logger.info("The database and the module definitions are unchanged; skipping the upgrade and validation steps");
+            
+            startQueryQueue();
+            StoragePolicy.getInstance().apply(connection);
+            originalVersion = getVersion(connection);
+            return;
+        }
+        
         if (!isNew()) {
         	new SystemUpgrade(false).start();
         	connection = DatabaseManager.getInstance().getAdminConnection();
@@ -152,6 +185,11 @@ public class DcDatabase {
         initialize(connection);
         setDbProperies(connection);
         
+        StoragePolicy.getInstance().apply(connection);
+        StoragePolicy.getInstance().convert(connection);
+        
+        new IndexManager().run(connection);
+        
         if (!isNew())
             new SystemUpgrade(true).start();
         
@@ -173,54 +211,43 @@ public class DcDatabase {
         if (DcConfig.getInstance().getVersion().isNewer(DatabaseManager.getInstance().getOriginalVersion()))
             return;
         
-        String sql;
-        ResultSet rs = null;
-        ResultSetMetaData md;
-        String columnName;
-        boolean remove;
-        
         Connection c = DatabaseManager.getInstance().getAdminConnection();
         
         try {
-        	Statement stmt = c.createStatement();
+            SchemaCatalog catalog = new SchemaCatalog(c);
+            Statement stmt = c.createStatement();
         
+	        String columnName;
+	        boolean remove;
 	        for (DcModule module : DcModules.getAllModules()) {
 	            
-	            if (module.isAbstract()) continue;
+	            // columns of modules being converted might still be needed
+	            if (module.isAbstract() || ConversionJob.isReadOnly(module.getIndex())) continue;
 	            
-	            try {
-	                sql = "select top 1 * from " + module.getTableName();
+	            for (SchemaCatalog.Column column : catalog.getColumns(module.getTableName())) {
+	                columnName = column.getName();
+	                remove = false;
 	                
-	                rs = stmt.executeQuery(sql);
-	                md = rs.getMetaData();
-	
-	                for (int i = 1; i < md.getColumnCount() + 1; i++) {
-	                	columnName = md.getColumnName(i);
-	                	remove = false;
-	                	
-	                    if (!columnName.startsWith("KEEP_ME_")) { 
-	                        for (DcField field : module.getFields()) {
-	                            if (columnName.equalsIgnoreCase(field.getDatabaseFieldName())) 
-	                                remove = field.getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION ? true : false; 
-	                        }
-	                        
-	                        // the column is not used.. remove!
-	                        if (remove) {
+	                if (!columnName.startsWith("KEEP_ME_")) { 
+	                    for (DcField field : module.getFields()) {
+	                        if (columnName.equalsIgnoreCase(field.getDatabaseFieldName())) 
+	                            remove = field.getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION ? true : false; 
+	                    }
+	                    
+	                    // the column is not used.. remove!
+	                    if (remove) {
+	                        try {
 	                            logger.info("Removing column " + columnName + " for module " + module.getName() + " as it is no longer in use");
 	                            stmt.execute("alter table " + module.getTableName() + " drop column " + columnName);
+	                        } catch (SQLException e) {
+	                            logger.error("Error while trying to cleanup unused columns", e);
 	                        }
 	                    }
 	                }
-	            } catch (Exception e) {
-	                logger.error("Error while trying to cleanup unused columns", e);
-	            } finally {
-	                try { 
-	                    if (rs != null) rs.close();
-	                } catch (Exception e) {
-	                    logger.debug("Error while closing database resources", e);
-	                }
 	            }
 	        }
+	        
+	        stmt.close();
         } catch (SQLException e) {
             logger.error("Error while trying to cleanup unused columns", e);
         }
@@ -233,12 +260,16 @@ public class DcDatabase {
     	return queue.getQueueSize();
     }
     
+    /**
+     * Returns the query queue of this database.
+     */
+    protected QueryQueue getQueryQueue() {
+        return queue;
+    }
+    
     private void startQueryQueue() {
-        queue = new QueryQueue();
-        Thread queryQueue = new Thread(queue, "queryQueue");
-        queryQueue.setPriority(Thread.NORM_PRIORITY);
-        queryQueue.setDaemon(true);
-        queryQueue.start();
+        queue = new QueryQueue(DatabaseManager.getInstance().getQueryWorkers());
+        queue.start();
     }
 
     /**
@@ -251,9 +282,10 @@ public class DcDatabase {
     /**
      * Adds a query to the query queue of this database.
      * @param query
+     * @return A future which is completed once the query has been executed.
      */
-    protected void queue(Query query) {
-        queue.addQuery(query);
+    protected CompletableFuture<Boolean> queue(Query query) {
+        return queue.addQuery(query);
     }
 
     /**
@@ -275,29 +307,21 @@ public class DcDatabase {
 	        Statement stmt = connection.createStatement();
 	
 	        initializeSystemTable(stmt);
-	        String testQuery;
-	        ResultSet rs = null;
+	        stmt.close();
+	        
+	        // the catalog is read once and compared with the module definitions in memory
+	        SchemaCatalog catalog = new SchemaCatalog(connection);
 	        for (DcModule module : DcModules.getAllModules()) {
 	            if (!module.isAbstract()) {
-	                testQuery = "select * from " + module.getTableName();
-	                try {
-	                    stmt.setMaxRows(1);
-	                    rs = stmt.executeQuery(testQuery);
-	                    initializeColumns(connection, rs.getMetaData(), module);
+	                if (catalog.exists(module.getTableName())) {
+	                    initializeColumns(connection, catalog, module);
 	                    logger.debug(DcResources.getText("msgTableFound", module.getTableName()));
-	                } catch (SQLException e) {
+	                } else {
 	                    logger.info((DcResources.getText("msgTableNotFound", module.getTableName())));
 	                    createTable(module);
-	                } finally {
-	                    try {
-	                        if (rs != null) rs.close();
-	                    } catch (Exception e) {
-	                        logger.debug("Failed to close ResultSet", e);
-	                    }
 	                }
 	            }
 	        }
-	        stmt.close();
     	} catch (Exception e) {
     		throw new DatabaseInitializationException("Database initiliazation has failed", e);
     	}
@@ -318,15 +342,14 @@ public class DcDatabase {
         }
     }
     
-    private void initializeColumns(Connection connection, ResultSetMetaData metaData, DcModule module) throws SQLException {
+    private void initializeColumns(Connection connection, SchemaCatalog catalog, DcModule module) {
         String tablename = module.getTableName();
         
         String column;
         String type;
         boolean found;
         boolean convert;
-        int dbSize;
-        int dbType;
+        SchemaCatalog.Column dbColumn;
         for (DcField field : module.getFields()) {
             
             column = field.getDatabaseFieldName();
@@ -336,26 +359,22 @@ public class DcDatabase {
             convert = false;
             
             if (!field.isUiOnly()) {
-                for (int i = 1; i < metaData.getColumnCount() + 1; i++) {
-                    if (metaData.getColumnName(i).equalsIgnoreCase(column)) {
-                        found = true;
-                        dbSize = metaData.getColumnDisplaySize(i);
-                        dbType = metaData.getColumnType(i);
-                        
-                        convert = false;
-                        if (    dbType == Types.BIGINT && 
-                               (field.getValueType() == DcRepository.ValueTypes._DCPARENTREFERENCE ||
-                                field.getValueType() == DcRepository.ValueTypes._DCOBJECTREFERENCE ||
-                                field.getIndex() == DcObject._ID))
-                            convert = true;
-                        else if (dbSize < field.getMaximumLength() && 
-                               (field.getValueType() == DcRepository.ValueTypes._STRING))
-                            convert = true;
-                        
-                        if (convert) {
-                            logger.info(DcResources.getText("msgTableUpgradeIncorrectColumn", new String[] {tablename, field.getLabel()}));
-                            executeQuery(connection, "alter table " + tablename + " alter column " + column + " " + type);
-                        }
+                dbColumn = catalog.getColumn(tablename, column);
+                if (dbColumn != null) {
+                    found = true;
+                    
+                    if (    "BIGINT".equalsIgnoreCase(dbColumn.getType()) && 
+                           (field.getValueType() == DcRepository.ValueTypes._DCPARENTREFERENCE ||
+                            field.getValueType() == DcRepository.ValueTypes._DCOBJECTREFERENCE ||
+                            field.getIndex() == DcObject._ID))
+                        convert = true;
+                    else if (dbColumn.getLength() > -1 && dbColumn.getLength() < field.getMaximumLength() && 
+                           (field.getValueType() == DcRepository.ValueTypes._STRING))
+                        convert = true;
+                    
+                    if (convert) {
+                        logger.info(DcResources.getText("msgTableUpgradeIncorrectColumn", new String[] {tablename, field.getLabel()}));
+                        executeQuery(connection, "alter table " + tablename + " alter column " + column + " " + type);
                     }
                 }
             } 
@@ -42,6 +42,7 @@ import net.datacrow.core.objects.Loan;
 import net.datacrow.core.objects.Picture;
 import net.datacrow.core.security.SecuredUser;
 import net.datacrow.core.utilities.CoreUtilities;
+import net.datacrow.server.data.IconCache;
 
 import org.apache.log4j.Logger;
 
@@ -62,6 +63,11 @@ public class DeleteQuery extends Query {
         dco = null;
     }
     
+    @Override
+    protected String getItemKey() {
+        return dco != null ? getModuleIdx() + "/" + dco.getID() : null;
+    }
+    
     @Override
     public List<DcObject> run() {
         Connection conn = null;
@@ -109,6 +115,7 @@ public class DeleteQuery extends Query {
                 if (dco.getModule().canBeLend()) {
                     stmt.execute("DELETE FROM " + DcModules.get(DcModules._LOAN).getTableName() + " WHERE " +
                                  DcModules.get(DcModules._LOAN).getField(Loan._D_OBJECTID).getDatabaseFieldName() + " = '" + dco.getID() + "'");
+                    ModuleVersions.getInstance().invalidate(DcModules._LOAN);
                 }
     
                 // Delete children. Ignore any abstract module (parent and/or children)
@@ -119,6 +126,7 @@ public class DeleteQuery extends Query {
                     DcModule childModule = dco.getModule().getChild(); 
                     stmt.execute("DELETE FROM " + childModule.getTableName() + " WHERE " + 
                                  childModule.getField(childModule.getParentReferenceFieldIndex()).getDatabaseFieldName() + " = '" + dco.getID() + "'");
+                    ModuleVersions.getInstance().invalidate(childModule.getIndex());
                 }
                 
                 // Remove any references to the to be deleted item.
@@ -126,6 +134,8 @@ public class DeleteQuery extends Query {
                     for (DcModule m : DcModules.getReferencingModules(dco.getModule().getIndex())) {
                         if (m.isAbstract()) continue;
                         
+                        ModuleVersions.getInstance().invalidate(m.getIndex());
+                        
                         if (m.getType() == DcModule._TYPE_MAPPING_MODULE) {
                             stmt.execute("DELETE FROM " + m.getTableName() + " WHERE " + 
                                     m.getField(DcMapping._B_REFERENCED_ID).getDatabaseFieldName() + " = '" + dco.getID() + "'");
@@ -159,6 +169,8 @@ public class DeleteQuery extends Query {
                     }
                     
                     if (field.getValueType() == DcRepository.ValueTypes._ICON) {
+                        IconCache.getInstance().remove(dco.getID());
+                        
                         file = new File(DcConfig.getInstance().getImageDir(), "icon_" + dco.getID() + ".jpg");
                         if (file.exists()) {
                             deleted = file.delete();
@@ -169,19 +181,23 @@ public class DeleteQuery extends Query {
                     if (field.getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION) {
                     	DcModule m = DcModules.get(DcModules.getMappingModIdx(field.getModule(), field.getReferenceIdx(), field.getIndex()));
                         stmt.execute("DELETE FROM " + m.getTableName() + " WHERE " + m.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName() + " = '" + dco.getID() + "'");
+                        ModuleVersions.getInstance().invalidate(m.getIndex());
                     }   
                 }
                 
                 stmt.execute("DELETE FROM " + DcModules.get(DcModules._PICTURE).getTableName() + " WHERE " +
                              DcModules.get(DcModules._PICTURE).getField(Picture._A_OBJECTID).getDatabaseFieldName() + " = '" + dco.getID() + "'");
+                ModuleVersions.getInstance().invalidate(DcModules._PICTURE);
                 
                 setSuccess(true);
             }
             
         } catch (SQLException se) {
             logger.error(se, se);
-            setSuccess(false);
+            setError(se);
         }
+        
+        ModuleVersions.getInstance().invalidate(getModuleIdx());
                 
         try {
             if (stmt != null) stmt.close();
@@ -0,0 +1,184 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.datacrow.core.DcRepository;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcField;
+import net.datacrow.core.objects.DcMapping;
+import net.datacrow.core.objects.Loan;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Manages the secondary indexes of the module tables. The indexes needed are derived from
+ * the module definitions:
+ * <ul>
+ * <li>the referenced item column of the mapping tables (used when counting and 
+ * removing references and when looking up the referencing items)</li>
+ * <li>the reference and parent reference columns of the item tables</li>
+ * <li>the item column of the loan table</li>
+ * </ul>
+ * Indexes are only created when there is no existing index (such as a primary key or
+ * one of the unique indexes created by the {@link CreateQuery}) starting with the column.
+ */
+public class IndexManager {
+
+    private static Logger logger = Logger.getLogger(IndexManager.class.getName());
+    
+    // prefix of the indexes managed by this class
+    private static final String _PREFIX = "IX_";
+    
+    public IndexManager() {}
+    
+    /**
+     * Creates the missing indexes and reports the managed indexes which are no longer needed.
+     * @param connection An admin connection.
+     */
+    public void run(Connection connection) {
+        Map<String, String[]> required = getRequiredIndexes();
+        Map<String, Collection<String>> leading = new LinkedHashMap<String, Collection<String>>();
+        Collection<String> managed = new HashSet<String>();
+        
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery(
+                    "SELECT TABLE_NAME, INDEX_NAME, COLUMN_NAME FROM INFORMATION_SCHEMA.SYSTEM_INDEXINFO " +
+                    "WHERE TABLE_SCHEM = 'PUBLIC' AND ORDINAL_POSITION = 1");
+            
+            String table;
+            String index;
+            Collection<String> columns;
+            while (rs.next()) {
+                table = rs.getString(1).toUpperCase();
+                index = rs.getString(2).toUpperCase();
+                
+                columns = leading.get(table);
+                if (columns == null) {
+                    columns = new HashSet<String>();
+                    leading.put(table, columns);
+                }
+                
+                columns.add(rs.getString(3).toUpperCase());
+                
+                if (index.startsWith(_PREFIX))
+                    managed.add(index);
+            }
+            
+            rs.close();
+            rs = null;
+            
+            String name;
+            String[] definition;
+            int created = 0;
+            for (Map.Entry<String, String[]> entry : required.entrySet()) {
+                name = entry.getKey();
+                definition = entry.getValue();
+                columns = leading.get(definition[0]);
+                
+                // tables which do not exist (yet) are skipped
+                if (columns == null || columns.contains(definition[1]))
+                    continue;
+                
+                try {
+                    long start = System.currentTimeMillis();
+                    stmt.execute("CREATE INDEX " + name + " ON " + definition[0] + " (" + definition[1] + ")");
+                    columns.add(definition[1]);
+                    created++;
+                    logger.info("Created index " + name + " on " + definition[0] + " (" + definition[1] + ") in " + 
+                                (System.currentTimeMillis() - start) + "ms");
+                } catch (SQLException se) {
+                    logger.error("Could not create index " + name + " on " + definition[0] + " (" + definition[1] + ")", se);
+                }
+            }
+            
+            for (String existing : managed) {
+                if (!required.containsKey(existing))
+                    logger.warn("Index " + existing + " is no longer used by any of the modules");
+            }
+            
+            logger.debug("Index check completed; " + created + " indexes created, " + required.size() + " indexes required");
+            
+        } catch (SQLException se) {
+            logger.error("Could not check the indexes of the database", se);
+        } finally {
+            try {
+                if (rs != null) rs.close();
+                if (stmt != null) stmt.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close database resources", se);
+            }
+        }
+    }
+    
+    /**
+     * Derives the needed indexes from the module definitions.
+     * @return The index definitions (table and column) per index name.
+     */
+    protected Map<String, String[]> getRequiredIndexes() {
+        Map<String, String[]> indexes = new LinkedHashMap<String, String[]>();
+        
+        for (DcModule module : DcModules.getAllModules()) {
+            
+            if (module.isAbstract()) continue;
+            
+            if (module.getType() == DcModule._TYPE_MAPPING_MODULE) {
+                add(indexes, module, module.getField(DcMapping._B_REFERENCED_ID));
+            } else if (module.getIndex() == DcModules._LOAN) {
+                add(indexes, module, module.getField(Loan._D_OBJECTID));
+            } else {
+                for (DcField field : module.getFields()) {
+                    if (    !field.isUiOnly() &&
+                           (field.getValueType() == DcRepository.ValueTypes._DCOBJECTREFERENCE ||
+                            field.getValueType() == DcRepository.ValueTypes._DCPARENTREFERENCE))
+                        add(indexes, module, field);
+                }
+            }
+        }
+        
+        return indexes;
+    }
+    
+    private void add(Map<String, String[]> indexes, DcModule module, DcField field) {
+        if (field == null) return;
+        
+        String table = module.getTableName().toUpperCase();
+        String column = field.getDatabaseFieldName().toUpperCase();
+        indexes.put(_PREFIX + table + "_" + column, new String[] {table, column});
+    }
+}
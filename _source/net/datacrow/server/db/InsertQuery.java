@@ -62,6 +62,11 @@ public class InsertQuery extends Query {
         dco = null;
     }
     
+    @Override
+    protected String getItemKey() {
+        return dco != null ? getModuleIdx() + "/" + dco.getID() : null;
+    }
+    
     @Override
     public List<DcObject> run() {
         Collection<Object> values = new ArrayList<Object>();
@@ -155,10 +160,12 @@ public class InsertQuery extends Query {
             setSuccess(true);
             
         } catch (SQLException e) {
-            setSuccess(false);
+            setError(e);
             logger.error("An error occured while running the query", e);
         }
         
+        ModuleVersions.getInstance().invalidate(getModuleIdx());
+        
         try {
             if (ps != null) ps.close();
             if (stmt != null) stmt.close();
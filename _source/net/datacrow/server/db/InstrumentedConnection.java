@@ -0,0 +1,232 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Wraps a connection, and the statements and result sets created by it, in a proxy which 
+ * reports the execution times, the preparations and the number of rows to the 
+ * {@link QueryStatistics}. The instrumented objects behave exactly like the original ones.
+ */
+public class InstrumentedConnection implements InvocationHandler {
+
+    private final Connection connection;
+    private final String user;
+    
+    private Connection proxy;
+    
+    private InstrumentedConnection(Connection connection, String user) {
+        this.connection = connection;
+        this.user = user;
+    }
+    
+    /**
+     * Instruments the connection. When the statistics are disabled the connection 
+     * is returned as is.
+     * @param connection The connection to instrument.
+     * @param user The user owning the connection.
+     */
+    public static Connection instrument(Connection connection, String user) {
+        if (connection == null || !QueryStatistics.getInstance().isEnabled())
+            return connection;
+        
+        InstrumentedConnection handler = new InstrumentedConnection(connection, user);
+        handler.proxy = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+        return handler.proxy;
+    }
+    
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        
+        if (name.equals("equals"))
+            return Boolean.valueOf(proxy == args[0]);
+        else if (name.equals("hashCode"))
+            return Integer.valueOf(System.identityHashCode(proxy));
+        
+        Object result = call(connection, method, args);
+        
+        if (name.equals("createStatement")) {
+            return wrap((Statement) result, Statement.class, null);
+        } else if (name.equals("prepareStatement") || name.equals("prepareCall")) {
+            String sql = (String) args[0];
+            QueryStatistics.getInstance().prepared(sql);
+            return wrap((Statement) result, name.equals("prepareCall") ? CallableStatement.class : PreparedStatement.class, sql);
+        }
+        
+        return result;
+    }
+    
+    private Statement wrap(Statement statement, Class<?> type, String sql) {
+        return (Statement) Proxy.newProxyInstance(
+                type.getClassLoader(), new Class<?>[] {type}, new StatementHandler(statement, sql));
+    }
+    
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+    
+    private class StatementHandler implements InvocationHandler {
+        
+        private final Statement statement;
+        private final String sql;
+        
+        private String batch;
+        private String last;
+        
+        private StatementHandler(Statement statement, String sql) {
+            this.statement = statement;
+            this.sql = sql;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            
+            if (name.equals("getConnection"))
+                return InstrumentedConnection.this.proxy;
+            else if (name.equals("equals"))
+                return Boolean.valueOf(proxy == args[0]);
+            else if (name.equals("hashCode"))
+                return Integer.valueOf(System.identityHashCode(proxy));
+            
+            if (name.equals("addBatch") && args != null && args.length == 1)
+                batch = (String) args[0];
+            
+            if (!name.startsWith("execute"))
+                return wrap(proxy, call(statement, method, args));
+            
+            String query = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : 
+                           (sql != null ? sql : batch);
+            
+            last = query;
+            
+            long start = System.nanoTime();
+            boolean failed = true;
+            Object result = null;
+            try {
+                result = call(statement, method, args);
+                failed = false;
+            } finally {
+                QueryStatistics.getInstance().executed(query, user, System.nanoTime() - start, getRows(result), failed);
+            }
+            
+            if (name.equals("executeBatch"))
+                batch = null;
+            
+            return result instanceof ResultSet ? wrap((ResultSet) result, (Statement) proxy, query) : result;
+        }
+        
+        private Object wrap(Object proxy, Object result) {
+            if (result instanceof ResultSet)
+                return wrap((ResultSet) result, (Statement) proxy, last);
+            
+            return result;
+        }
+        
+        private ResultSet wrap(ResultSet rs, Statement statement, String query) {
+            return (ResultSet) Proxy.newProxyInstance(
+                    ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new ResultSetHandler(rs, statement, query));
+        }
+        
+        private long getRows(Object result) {
+            if (result instanceof Integer)
+                return ((Integer) result).longValue();
+            else if (result instanceof Long)
+                return ((Long) result).longValue();
+            else if (result instanceof int[]) {
+                long rows = 0;
+                for (int count : (int[]) result)
+                    rows += Math.max(0, count);
+                return rows;
+            }
+            
+            return -1;
+        }
+    }
+    
+    private static class ResultSetHandler implements InvocationHandler {
+        
+        private final ResultSet rs;
+        private final Statement statement;
+        private final String sql;
+        
+        private long rows = 0;
+        private boolean reported = false;
+        
+        private ResultSetHandler(ResultSet rs, Statement statement, String sql) {
+            this.rs = rs;
+            this.statement = statement;
+            this.sql = sql;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            
+            if (name.equals("getStatement"))
+                return statement;
+            else if (name.equals("equals"))
+                return Boolean.valueOf(proxy == args[0]);
+            else if (name.equals("hashCode"))
+                return Integer.valueOf(System.identityHashCode(proxy));
+            
+            Object result = call(rs, method, args);
+            
+            if (name.equals("next")) {
+                if (Boolean.TRUE.equals(result))
+                    rows++;
+                else 
+                    report();
+            } else if (name.equals("close")) {
+                report();
+            }
+            
+            return result;
+        }
+        
+        private void report() {
+            if (!reported) {
+                reported = true;
+                QueryStatistics.getInstance().read(sql, rows);
+            }
+        }
+    }
+}
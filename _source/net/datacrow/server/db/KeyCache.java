@@ -0,0 +1,140 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.datacrow.core.security.SecuredUser;
+import net.datacrow.server.db.ModuleVersions.Snapshot;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Caches the results of key queries ({@link DatabaseManager#getKeys(SecuredUser, net.datacrow.core.data.DataFilter)}).
+ *
+ * A cached result remembers the versions of the modules it depends on (see {@link ModuleVersions}).
+ * As soon as one of these versions has moved on the cached result is considered stale.
+ *
+ * The cache is keyed on the user and on the SQL statement generated for the data filter,
+ * which is the canonical form of the filter as far as the database is concerned.
+ */
+public class KeyCache {
+
+    private static Logger logger = Logger.getLogger(KeyCache.class.getName());
+
+    private static final int _MAX_ENTRIES = 250;
+
+    private static KeyCache instance = new KeyCache();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > _MAX_ENTRIES;
+        }
+    };
+
+    private KeyCache() {}
+
+    /**
+     * Retrieves the sole instance of this class
+     */
+    public static KeyCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Retrieves a copy of the cached keys.
+     * @return The keys or null if there is no valid cache entry.
+     */
+    public Map<String, Integer> get(SecuredUser su, String sql) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(getKey(su, sql));
+        }
+
+        if (entry == null)
+            return null;
+
+        if (!entry.getSnapshot().isCurrent()) {
+            synchronized (entries) {
+                entries.remove(getKey(su, sql));
+            }
+            return null;
+        }
+
+        return new LinkedHashMap<String, Integer>(entry.getKeys());
+    }
+
+    /**
+     * Stores the keys. The snapshot should have been taken before the query was executed.
+     * Should the data have changed in the mean time, the entry will be ignored on retrieval.
+     */
+    public void put(SecuredUser su, String sql, Snapshot snapshot, Map<String, Integer> keys) {
+        if (!snapshot.isCurrent())
+            return;
+
+        synchronized (entries) {
+            entries.put(getKey(su, sql), new Entry(snapshot, new LinkedHashMap<String, Integer>(keys)));
+        }
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+
+        logger.debug("All cached keys have been removed");
+    }
+
+    private String getKey(SecuredUser su, String sql) {
+        return su.getUsername() + "\n" + sql;
+    }
+
+    private static class Entry {
+
+        private final Snapshot snapshot;
+        private final Map<String, Integer> keys;
+
+        private Entry(Snapshot snapshot, Map<String, Integer> keys) {
+            this.snapshot = snapshot;
+            this.keys = keys;
+        }
+
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+
+        public Map<String, Integer> getKeys() {
+            return keys;
+        }
+    }
+}
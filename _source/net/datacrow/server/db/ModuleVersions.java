@@ -0,0 +1,178 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.datacrow.core.DcRepository;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcField;
+
+/**
+ * Keeps track of changes to the data per module. Every module carries a version stamp 
+ * which is raised whenever data of that module is written (by the insert, update and delete
+ * queries). Caches take a {@link Snapshot} of the versions of the modules their results 
+ * depend on; as soon as one of these versions has moved on the cached result is stale.
+ */
+public class ModuleVersions {
+
+    private static ModuleVersions instance = new ModuleVersions();
+
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicLong globalVersion = new AtomicLong();
+    private final Map<Integer, AtomicLong> versions = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private ModuleVersions() {}
+
+    /**
+     * Retrieves the sole instance of this class
+     */
+    public static ModuleVersions getInstance() {
+        return instance;
+    }
+
+    /**
+     * Creates a snapshot of the versions of the modules the specified module depends on
+     * (the module itself, its child module, its mapping modules and the referenced modules).
+     * The snapshot should be taken before the data is queried.
+     * @param module The module being queried.
+     */
+    public Snapshot getSnapshot(int module) {
+        int[] modules = getDependencies(module);
+        long[] moduleVersions = new long[modules.length];
+
+        for (int i = 0; i < modules.length; i++)
+            moduleVersions[i] = getVersion(modules[i]);
+
+        return new Snapshot(modules, moduleVersions, epoch.get(), globalVersion.get());
+    }
+
+    /**
+     * Marks the data of the specified module as changed.
+     * @param module The module index.
+     */
+    public void invalidate(int module) {
+        AtomicLong version = versions.get(Integer.valueOf(module));
+        if (version == null) {
+            versions.putIfAbsent(Integer.valueOf(module), new AtomicLong());
+            version = versions.get(Integer.valueOf(module));
+        }
+
+        version.incrementAndGet();
+        globalVersion.incrementAndGet();
+    }
+
+    /**
+     * Marks all data as changed. Used after statements for which the affected
+     * modules cannot be determined.
+     */
+    public void invalidateAll() {
+        epoch.incrementAndGet();
+        globalVersion.incrementAndGet();
+    }
+
+    private long getVersion(int module) {
+        AtomicLong version = versions.get(Integer.valueOf(module));
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * Determines the modules on which the data of the specified module depend.
+     * Abstract modules (and unknown modules) span many tables; these depend on all data
+     * (indicated by an empty list).
+     */
+    private int[] getDependencies(int moduleIdx) {
+        DcModule module = DcModules.get(moduleIdx);
+
+        if (module == null || module.isAbstract())
+            return new int[0];
+
+        Collection<Integer> modules = new HashSet<Integer>();
+        modules.add(Integer.valueOf(moduleIdx));
+
+        if (module.getChild() != null)
+            modules.add(Integer.valueOf(module.getChild().getIndex()));
+
+        if (module.canBeLend())
+            modules.add(Integer.valueOf(DcModules._LOAN));
+
+        for (DcField field : module.getFields()) {
+            if (field.getReferenceIdx() > 0)
+                modules.add(Integer.valueOf(field.getReferenceIdx()));
+
+            if (field.getValueType() == DcRepository.ValueTypes._DCOBJECTCOLLECTION)
+                modules.add(Integer.valueOf(DcModules.getMappingModIdx(field.getModule(), field.getReferenceIdx(), field.getIndex())));
+        }
+
+        int[] result = new int[modules.size()];
+        int i = 0;
+        for (Integer idx : modules)
+            result[i++] = idx.intValue();
+
+        return result;
+    }
+
+    /**
+     * The versions of a set of modules at a given moment in time.
+     */
+    public class Snapshot {
+
+        private final int[] modules;
+        private final long[] moduleVersions;
+        private final long snapshotEpoch;
+        private final long global;
+
+        private Snapshot(int[] modules, long[] moduleVersions, long snapshotEpoch, long global) {
+            this.modules = modules;
+            this.moduleVersions = moduleVersions;
+            this.snapshotEpoch = snapshotEpoch;
+            this.global = global;
+        }
+
+        /**
+         * Indicates if none of the modules have been changed since the snapshot was taken.
+         */
+        public boolean isCurrent() {
+            if (snapshotEpoch != epoch.get())
+                return false;
+
+            if (modules.length == 0)
+                return global == globalVersion.get();
+
+            for (int i = 0; i < modules.length; i++) {
+                if (moduleVersions[i] != getVersion(modules[i]))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+}
@@ -30,8 +30,10 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.imageio.ImageIO;
 
@@ -50,6 +52,7 @@ import net.datacrow.core.server.Connector;
 import net.datacrow.core.utilities.Base64;
 import net.datacrow.core.utilities.CoreUtilities;
 import net.datacrow.server.data.DataManager;
+import net.datacrow.server.data.IconCache;
 
 import org.apache.log4j.Logger;
 
@@ -71,6 +74,10 @@ public abstract class Query {
     
     private boolean success = true;
     private boolean log = true;
+    
+    private Exception error;
+    
+    private final List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
 
     /**
      * Constructs a new Query object. 
@@ -99,6 +106,46 @@ public abstract class Query {
     protected boolean isSuccess() {
         return success;
     }
+    
+    /**
+     * Marks the query as failed.
+     * @param error The cause of the failure.
+     */
+    protected void setError(Exception error) {
+        this.error = error;
+        this.success = false;
+    }
+    
+    /**
+     * The cause of the failure, if any.
+     */
+    protected Exception getError() {
+        return error;
+    }
+    
+    /**
+     * Registers a future to be completed once this query has been executed.
+     */
+    protected synchronized void addFuture(CompletableFuture<Boolean> future) {
+        futures.add(future);
+    }
+    
+    /**
+     * Completes the registered futures with the outcome of this query: the success
+     * indicator or, when the query failed with an exception, the exception.
+     * @param e An exception thrown while executing the query (optional).
+     */
+    protected synchronized void complete(Exception e) {
+        Exception cause = e != null ? e : error;
+        for (CompletableFuture<Boolean> future : futures) {
+            if (cause != null)
+                future.completeExceptionally(cause);
+            else 
+                future.complete(Boolean.valueOf(success));
+        }
+        
+        futures.clear();
+    }
 
     protected void clear() {}
     
@@ -154,6 +201,15 @@ public abstract class Query {
         return module;
     }
     
+    /**
+     * Identifies the item affected by this query. Used by the {@link QueryQueue}
+     * to keep track of the waiting queries per item.
+     * @return The key or null if the query does not apply to a single item.
+     */
+    protected String getItemKey() {
+        return null;
+    }
+    
     public DcModule getModule() {
         return DcModules.get(getModuleIdx());
     }
@@ -242,6 +298,8 @@ public abstract class Query {
     protected void saveIcon(String icon, DcField field, String ID) {
         File file = new File(DcConfig.getInstance().getImageDir(), "icon_" + ID + ".jpg");
         
+        IconCache.getInstance().remove(ID);
+        
         if (!CoreUtilities.isEmpty(icon)) {
             try {
                 CoreUtilities.writeToFile(Base64.decode(icon.toCharArray()), file);
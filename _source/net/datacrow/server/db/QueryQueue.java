@@ -25,58 +25,245 @@
 
 package net.datacrow.server.db;
 
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.datacrow.core.objects.DcObject;
 
 import org.apache.log4j.Logger;
 
 /**
- * Queries are queued here awaiting to be executed. The query queue manages the 
- * back log of queries and executes the requests tied to the queries. The queue
- * is based on the FIFO principle.
+ * Queries are queued here awaiting to be executed (write behind). The query queue 
+ * manages the back log of queries and executes the requests tied to the queries. 
+ * 
+ * The queue is partitioned by module; every partition is served by its own worker thread. 
+ * Within a partition the FIFO principle applies. With a single worker (the default) all 
+ * queries are executed in the order in which they were added.
+ * 
+ * An update of an item for which an update is still waiting in the queue is merged 
+ * into the waiting update (coalescing).
  * 
  * @author Robert Jan van der Waals
  */
-public class QueryQueue extends Thread {
+public class QueryQueue {
 
     private static Logger logger = Logger.getLogger(QueryQueue.class.getName());
 
-    private final LinkedList<Query> lQueryQueue = new LinkedList<Query>();
-    private boolean isLazy = true;
+    private final BlockingQueue<Query>[] partitions;
+    
+    // the last query waiting in the queue per item
+    private final Map<String, Query> waiting = new HashMap<String, Query>();
     
-    public QueryQueue() {}
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger maxSize = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    
+    /**
+     * Creates a new queue.
+     * @param workers The number of worker threads (and partitions).
+     */
+    @SuppressWarnings("unchecked")
+    public QueryQueue(int workers) {
+        partitions = new BlockingQueue[Math.max(1, workers)];
+        for (int i = 0; i < partitions.length; i++)
+            partitions[i] = new LinkedBlockingQueue<Query>();
+    }
+    
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        for (int i = 0; i < partitions.length; i++) {
+            Thread worker = new Worker(partitions[i], "queryQueue-" + i);
+            worker.setPriority(Thread.NORM_PRIORITY);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
 
     /**
      * Indicates the back log.
      */
     public int getQueueSize() {
-    	return lQueryQueue.size();
+    	return size.get();
+    }
+    
+    /**
+     * The largest back log since the queue was started.
+     */
+    public int getMaxQueueSize() {
+        return maxSize.get();
+    }
+    
+    /**
+     * The number of executed queries.
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+    
+    /**
+     * The number of queries which have been merged into a waiting query.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+    
+    /**
+     * The number of executed queries which did not succeed.
+     */
+    public long getFailedCount() {
+        return failed.get();
     }
     
     /**
      * Add a query to the end of the queue. 
      * @param query
+     * @return A future which is completed once the query has been executed (see {@link Query#complete(Exception)}).
+     * When the query has been merged into a waiting query the future completes with the outcome of that query.
      */
-    public void addQuery(Query query) {
-        lQueryQueue.addLast(query);
+    public CompletableFuture<Boolean> addQuery(Query query) {
+        String key = query.getItemKey();
+        CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        
+        synchronized (waiting) {
+            if (key != null) {
+                Query last = waiting.get(key);
+                if (    last instanceof UpdateQuery && query instanceof UpdateQuery && 
+                        ((UpdateQuery) last).merge((UpdateQuery) query)) {
+                    
+                    coalesced.incrementAndGet();
+                    last.addFuture(future);
+                    return future;
+                }
+                
+                waiting.put(key, query);
+            }
+            
+            query.addFuture(future);
+            
+            int current = size.incrementAndGet();
+            if (current > maxSize.get())
+                maxSize.set(current);
+            
+            getPartition(query).add(query);
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Waits until all queries added before this call have been executed.
+     */
+    public void flush() throws InterruptedException {
+        getBarrier().await();
     }
+    
+    /**
+     * Waits until all queries added before this call have been executed or until the 
+     * time out has elapsed.
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return True if the queries have been executed. False if the time out elapsed.
+     */
+    public boolean flush(long timeout) throws InterruptedException {
+        return getBarrier().await(timeout, TimeUnit.MILLISECONDS);
+    }
+    
+    private CountDownLatch getBarrier() {
+        CountDownLatch latch = new CountDownLatch(partitions.length);
+        
+        synchronized (waiting) {
+            for (BlockingQueue<Query> partition : partitions)
+                partition.add(new Barrier(latch));
+        }
+        
+        return latch;
+    }
+    
+    private BlockingQueue<Query> getPartition(Query query) {
+        return partitions[Math.abs(query.getModuleIdx()) % partitions.length];
+    }
+    
+    private void execute(Query query) {
+        if (query instanceof Barrier) {
+            query.run();
+            return;
+        }
+        
+        String key = query.getItemKey();
+        synchronized (waiting) {
+            // from here on no other queries can be merged into this query
+            if (key != null && waiting.get(key) == query)
+                waiting.remove(key);
+        }
 
-    @Override
-    public void run() {
-        synchronized(this) {
+        try {
+            query.run();
+            
+            if (!query.isSuccess())
+                failed.incrementAndGet();
+            
+            query.complete(null);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.error(e, e);
+            query.complete(e);
+        } finally {
+            size.decrementAndGet();
+            processed.incrementAndGet();
+        }
+    }
+    
+    private class Worker extends Thread {
+        
+        private final BlockingQueue<Query> partition;
+        
+        private Worker(BlockingQueue<Query> partition, String name) {
+            super(name);
+            this.partition = partition;
+        }
+        
+        @Override
+        public void run() {
             while (true) {
                 try {
-                    if (lQueryQueue.size() > 0 && isLazy) {
-                        isLazy = false;
-                        Query query = lQueryQueue.removeFirst();
-                        query.run();
-                    } else {
-                        isLazy = true;
-                        sleep(10);
-                    }
+                    execute(partition.take());
+                } catch (InterruptedException ie) {
+                    logger.debug("Query queue worker " + getName() + " has been interrupted");
+                    return;
                 } catch (Exception e) {
                     logger.error(e, e);
                 }
             }
         }
     }
+    
+    /**
+     * Marker placed in the partitions by {@link QueryQueue#flush()}. 
+     */
+    private static class Barrier extends Query {
+        
+        private final CountDownLatch latch;
+        
+        private Barrier(CountDownLatch latch) {
+            super(null, -1);
+            this.latch = latch;
+        }
+        
+        @Override
+        public List<DcObject> run() {
+            latch.countDown();
+            return null;
+        }
+    }
 }
@@ -0,0 +1,481 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+
+/**
+ * Collects timings of the statements executed on the connections handed out by the 
+ * {@link DatabaseManager} (see {@link InstrumentedConnection}). Statistics are kept per 
+ * normalized SQL statement (literals replaced by question marks) and per module (based 
+ * on the first table of the statement):
+ * <ul>
+ * <li>the execution time (histogram)</li>
+ * <li>the number of rows returned or affected</li>
+ * <li>the number of statement preparations</li>
+ * </ul>
+ * Next to this the time needed to acquire a connection and the slowest statements are kept.
+ * The statistics are disabled by default; see {@link #setEnabled(boolean)}.
+ */
+public class QueryStatistics {
+
+    private static QueryStatistics instance = new QueryStatistics();
+    
+    private static final int _MAX_SHAPES = 1000;
+    private static final int _SLOW_QUERIES = 25;
+    private static final String _OTHER = "<other>";
+    
+    private static final Pattern patternString = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern patternNumber = Pattern.compile("(?<![A-Za-z0-9_])-?\\d+(?:\\.\\d+)?(?![A-Za-z0-9_])");
+    private static final Pattern patternList = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+    private static final Pattern patternWhitespace = Pattern.compile("\\s+");
+    private static final Pattern patternTable = Pattern.compile("(?i)\\b(?:FROM|INTO|UPDATE|TABLE)\\s+([A-Za-z0-9_\\.]+)");
+
+    private final Map<String, Statistics> shapes = new ConcurrentHashMap<String, Statistics>();
+    private final Map<String, Statistics> modules = new ConcurrentHashMap<String, Statistics>();
+    private final Map<String, String> tables = new ConcurrentHashMap<String, String>();
+    
+    private final Histogram connectionWait = new Histogram();
+    
+    private final PriorityQueue<SlowQuery> slowQueries = new PriorityQueue<SlowQuery>(_SLOW_QUERIES + 1, new Comparator<SlowQuery>() {
+        @Override
+        public int compare(SlowQuery q1, SlowQuery q2) {
+            return q1.getNanos() < q2.getNanos() ? -1 : (q1.getNanos() == q2.getNanos() ? 0 : 1);
+        }
+    });
+    
+    private volatile boolean enabled = false;
+    private volatile long since = System.currentTimeMillis();
+    
+    private QueryStatistics() {}
+
+    /**
+     * Retrieves the sole instance of this class
+     */
+    public static QueryStatistics getInstance() {
+        return instance;
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the collection of statistics on or off. 
+     * Connections created while disabled are not instrumented.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * Removes all collected statistics.
+     */
+    public void reset() {
+        shapes.clear();
+        modules.clear();
+        connectionWait.clear();
+        
+        synchronized (slowQueries) {
+            slowQueries.clear();
+        }
+        
+        since = System.currentTimeMillis();
+    }
+    
+    /**
+     * Registers the time spent on acquiring a connection.
+     */
+    public void connectionAcquired(long nanos) {
+        if (enabled)
+            connectionWait.add(nanos / 1000);
+    }
+    
+    /**
+     * Registers the preparation of a statement.
+     */
+    protected void prepared(String sql) {
+        if (!enabled) return;
+        
+        getStatistics(shapes, normalize(sql)).prepared();
+        getStatistics(modules, getModule(sql)).prepared();
+    }
+    
+    /**
+     * Registers the execution of a statement.
+     * @param sql The executed statement.
+     * @param user The user executing the statement.
+     * @param nanos The execution time in nano seconds.
+     * @param rows The number of affected rows, -1 if unknown. 
+     * @param failed Indicates if the statement failed.
+     */
+    protected void executed(String sql, String user, long nanos, long rows, boolean failed) {
+        if (!enabled || sql == null) return;
+        
+        String shape = normalize(sql);
+        
+        getStatistics(shapes, shape).executed(nanos, rows, failed);
+        getStatistics(modules, getModule(sql)).executed(nanos, rows, failed);
+        
+        synchronized (slowQueries) {
+            if (slowQueries.size() < _SLOW_QUERIES || slowQueries.peek().getNanos() < nanos) {
+                // only the normalized statement is kept; the literals can hold passwords and item data
+                slowQueries.add(new SlowQuery(shape, user, nanos));
+                
+                if (slowQueries.size() > _SLOW_QUERIES)
+                    slowQueries.poll();
+            }
+        }
+    }
+    
+    /**
+     * Registers the rows read from the result of a statement.
+     */
+    protected void read(String sql, long rows) {
+        if (!enabled || sql == null) return;
+        
+        getStatistics(shapes, normalize(sql)).read(rows);
+        getStatistics(modules, getModule(sql)).read(rows);
+    }
+    
+    /**
+     * The statistics per normalized statement.
+     */
+    public Map<String, Statistics> getShapes() {
+        return Collections.unmodifiableMap(shapes);
+    }
+
+    /**
+     * The statistics per module.
+     */
+    public Map<String, Statistics> getModules() {
+        return Collections.unmodifiableMap(modules);
+    }
+    
+    /**
+     * The time (in micro seconds) needed to acquire a connection.
+     */
+    public Histogram getConnectionWait() {
+        return connectionWait;
+    }
+    
+    /**
+     * The slowest statements, the slowest first.
+     */
+    public List<SlowQuery> getSlowQueries() {
+        List<SlowQuery> result;
+        synchronized (slowQueries) {
+            result = new ArrayList<SlowQuery>(slowQueries);
+        }
+        
+        Collections.sort(result, Collections.reverseOrder(slowQueries.comparator()));
+        return result;
+    }
+    
+    /**
+     * Creates a readable report of the statistics, ordered by the total execution time.
+     * @param max The maximum number of statements to report.
+     */
+    public String getReport(int max) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("Query statistics since " + new Date(since) + "\n");
+        sb.append("Connection wait: " + connectionWait + "\n");
+        
+        sb.append("\nPer module:\n");
+        append(sb, modules, Integer.MAX_VALUE);
+        
+        sb.append("\nPer statement (top " + max + " by total time):\n");
+        append(sb, shapes, max);
+        
+        sb.append("\nSlowest statements:\n");
+        for (SlowQuery query : getSlowQueries())
+            sb.append(query + "\n");
+        
+        return sb.toString();
+    }
+    
+    private void append(StringBuffer sb, Map<String, Statistics> statistics, int max) {
+        List<Map.Entry<String, Statistics>> entries = new ArrayList<Map.Entry<String, Statistics>>(statistics.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Statistics>>() {
+            @Override
+            public int compare(Map.Entry<String, Statistics> e1, Map.Entry<String, Statistics> e2) {
+                long t1 = e1.getValue().getTime().getTotal();
+                long t2 = e2.getValue().getTime().getTotal();
+                return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        
+        int count = 0;
+        for (Map.Entry<String, Statistics> entry : entries) {
+            if (count++ == max) break;
+            sb.append(entry.getValue() + " | " + entry.getKey() + "\n");
+        }
+    }
+    
+    private Statistics getStatistics(Map<String, Statistics> map, String key) {
+        Statistics statistics = map.get(key);
+        
+        if (statistics == null) {
+            // keep the memory usage in check; statements built with unusual literals end up here
+            if (map.size() >= _MAX_SHAPES)
+                key = _OTHER;
+            
+            synchronized (map) {
+                statistics = map.get(key);
+                if (statistics == null) {
+                    statistics = new Statistics();
+                    map.put(key, statistics);
+                }
+            }
+        }
+        
+        return statistics;
+    }
+    
+    /**
+     * Replaces the literals of the statement by question marks so statements differing
+     * only in their values are counted as one.
+     */
+    protected String normalize(String sql) {
+        String s = patternString.matcher(sql).replaceAll("?");
+        s = patternNumber.matcher(s).replaceAll("?");
+        s = patternWhitespace.matcher(s).replaceAll(" ");
+        s = patternList.matcher(s).replaceAll("(?...)");
+        return s.trim();
+    }
+    
+    /**
+     * Determines the module based on the first table used by the statement.
+     */
+    private String getModule(String sql) {
+        Matcher matcher = patternTable.matcher(sql);
+        if (!matcher.find())
+            return _OTHER;
+        
+        String table = matcher.group(1).toUpperCase();
+        
+        if (tables.isEmpty()) {
+            for (DcModule module : DcModules.getAllModules()) {
+                if (module.getTableName() != null && module.getTableName().length() > 0)
+                    tables.put(module.getTableName().toUpperCase(), module.getName());
+            }
+        }
+        
+        String module = tables.get(table);
+        return module != null ? module : table;
+    }
+    
+    /**
+     * The statistics of a statement or module.
+     */
+    public static class Statistics {
+        
+        private final Histogram time = new Histogram();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong maxRows = new AtomicLong();
+        private final AtomicLong preparations = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        
+        private void executed(long nanos, long rows, boolean failed) {
+            time.add(nanos / 1000);
+            
+            if (failed)
+                failures.incrementAndGet();
+            
+            if (rows > 0)
+                read(rows);
+        }
+        
+        private void read(long count) {
+            rows.addAndGet(count);
+            
+            long max = maxRows.get();
+            while (count > max && !maxRows.compareAndSet(max, count))
+                max = maxRows.get();
+        }
+        
+        private void prepared() {
+            preparations.incrementAndGet();
+        }
+        
+        /**
+         * The execution times in micro seconds.
+         */
+        public Histogram getTime() {
+            return time;
+        }
+        
+        public long getRows() {
+            return rows.get();
+        }
+        
+        public long getMaxRows() {
+            return maxRows.get();
+        }
+        
+        public long getPreparations() {
+            return preparations.get();
+        }
+        
+        public long getFailures() {
+            return failures.get();
+        }
+        
+        @Override
+        public String toString() {
+            return time + ", rows=" + rows.get() + ", max rows=" + maxRows.get() + 
+                   ", prepared=" + preparations.get() + ", failed=" + failures.get();
+        }
+    }
+    
+    /**
+     * Histogram with exponential buckets; bucket i holds the values smaller than 2^i.
+     * The percentiles are estimated by the upper bound of the bucket.
+     */
+    public static class Histogram {
+        
+        private static final int _BUCKETS = 40;
+        
+        private final AtomicLongArray buckets = new AtomicLongArray(_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        
+        private void add(long value) {
+            int bucket = Math.min(_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(value);
+            
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value))
+                current = max.get();
+        }
+        
+        private void clear() {
+            for (int i = 0; i < _BUCKETS; i++)
+                buckets.set(i, 0);
+            
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+        
+        public long getCount() {
+            return count.get();
+        }
+        
+        public long getTotal() {
+            return total.get();
+        }
+        
+        public long getMax() {
+            return max.get();
+        }
+        
+        public long getMean() {
+            long c = count.get();
+            return c == 0 ? 0 : total.get() / c;
+        }
+        
+        /**
+         * Estimates the given percentile.
+         * @param percentile A value between 0 and 100.
+         */
+        public long getPercentile(double percentile) {
+            long c = count.get();
+            if (c == 0) return 0;
+            
+            long threshold = (long) Math.ceil(c * percentile / 100);
+            long cumulative = 0;
+            for (int i = 0; i < _BUCKETS; i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= threshold)
+                    return Math.min(max.get(), (1L << i) - 1);
+            }
+            
+            return max.get();
+        }
+        
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", total=" + (getTotal() / 1000) + "ms, mean=" + getMean() + "us, p50=" + 
+                   getPercentile(50) + "us, p95=" + getPercentile(95) + "us, p99=" + getPercentile(99) + "us, max=" + getMax() + "us";
+        }
+    }
+    
+    /**
+     * A slow statement. The statement is normalized; its literals have been removed.
+     */
+    public static class SlowQuery {
+        
+        private final String sql;
+        private final String user;
+        private final long nanos;
+        private final long timestamp = System.currentTimeMillis();
+        
+        private SlowQuery(String sql, String user, long nanos) {
+            this.sql = sql;
+            this.user = user;
+            this.nanos = nanos;
+        }
+        
+        public String getSql() {
+            return sql;
+        }
+        
+        public String getUser() {
+            return user;
+        }
+        
+        public long getNanos() {
+            return nanos;
+        }
+        
+        public Date getTimestamp() {
+            return new Date(timestamp);
+        }
+        
+        @Override
+        public String toString() {
+            return (nanos / 1000000) + "ms [" + user + ", " + getTimestamp() + "] " + sql;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The tables and columns of the database as registered in INFORMATION_SCHEMA.COLUMNS.
+ * The catalog is read with a single query.
+ */
+public class SchemaCatalog {
+
+    private static Logger logger = Logger.getLogger(SchemaCatalog.class.getName());
+    
+    private final Map<String, Map<String, Column>> tables = new LinkedHashMap<String, Map<String, Column>>();
+    
+    /**
+     * Reads the catalog of the public schema.
+     * @param connection
+     * @throws SQLException
+     */
+    public SchemaCatalog(Connection connection) throws SQLException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery(
+                    "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE, CHARACTER_MAXIMUM_LENGTH " +
+                    "FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC' " +
+                    "ORDER BY TABLE_NAME, ORDINAL_POSITION");
+            
+            String table;
+            Map<String, Column> columns;
+            long length;
+            while (rs.next()) {
+                table = rs.getString(1).toUpperCase();
+                columns = tables.get(table);
+                if (columns == null) {
+                    columns = new LinkedHashMap<String, Column>();
+                    tables.put(table, columns);
+                }
+                
+                length = rs.getLong(4);
+                columns.put(rs.getString(2).toUpperCase(), new Column(
+                        rs.getString(2), rs.getString(3), rs.wasNull() ? -1 : length));
+            }
+        } finally {
+            try {
+                if (rs != null) rs.close();
+                if (stmt != null) stmt.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close database resources", se);
+            }
+        }
+    }
+    
+    /**
+     * Indicates if the table exists.
+     * @param table The table name (case insensitive).
+     */
+    public boolean exists(String table) {
+        return tables.containsKey(table.toUpperCase());
+    }
+    
+    /**
+     * Retrieves the column of the table.
+     * @param table The table name (case insensitive).
+     * @param column The column name (case insensitive).
+     * @return The column or null if the table or column does not exist.
+     */
+    public Column getColumn(String table, String column) {
+        Map<String, Column> columns = tables.get(table.toUpperCase());
+        return columns == null ? null : columns.get(column.toUpperCase());
+    }
+    
+    /**
+     * The names of all tables (upper case).
+     */
+    public Collection<String> getTables() {
+        return tables.keySet();
+    }
+    
+    /**
+     * Retrieves all columns of the table.
+     * @param table The table name (case insensitive).
+     */
+    public Collection<Column> getColumns(String table) {
+        Map<String, Column> columns = tables.get(table.toUpperCase());
+        return columns == null ? new ArrayList<Column>() : columns.values();
+    }
+    
+    /**
+     * A column as registered in the catalog.
+     */
+    public static class Column {
+        
+        private final String name;
+        private final String type;
+        private final long length;
+        
+        private Column(String name, String type, long length) {
+            this.name = name;
+            this.type = type;
+            this.length = length;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * The SQL data type name (such as BIGINT or CHARACTER VARYING).
+         */
+        public String getType() {
+            return type;
+        }
+        
+        /**
+         * The maximum length of character columns; -1 for other columns.
+         */
+        public long getLength() {
+            return length;
+        }
+        
+        @Override
+        public String toString() {
+            return name + " " + type + (length > -1 ? "(" + length + ")" : "");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.DcField;
+import net.datacrow.core.utilities.CoreUtilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A fingerprint of everything the start up validation of the database depends on: 
+ * the application and database version, the module definitions, the database schema, 
+ * the storage policy, the pending conversion scripts and the user.
+ * 
+ * The fingerprint is stored when the database is closed gracefully. When the fingerprint
+ * computed at the next start up matches the stored fingerprint the upgrade, validation, 
+ * conversion and cleanup steps can safely be skipped. The stored fingerprint is removed 
+ * once read so that an unexpected shutdown always leads to a full validation.
+ */
+public class SchemaFingerprint {
+
+    private static Logger logger = Logger.getLogger(SchemaFingerprint.class.getName());
+    
+    private final File file;
+    
+    /**
+     * @param name The name of the database.
+     */
+    public SchemaFingerprint(String name) {
+        file = new File(DcConfig.getInstance().getDatabaseDir(), name + ".fingerprint");
+    }
+    
+    /**
+     * Stores the current fingerprint.
+     * @param connection An admin connection.
+     * @param user The user for which the privileges have been set.
+     */
+    public void save(Connection connection, String user) {
+        FileOutputStream fos = null;
+        try {
+            String fingerprint = compute(connection, user);
+            fos = new FileOutputStream(file);
+            fos.write(fingerprint.getBytes("UTF-8"));
+        } catch (Exception e) {
+            logger.error("Could not store the schema fingerprint in " + file, e);
+            delete();
+        } finally {
+            try {
+                if (fos != null) fos.close();
+            } catch (IOException e) {
+                logger.debug("Could not release fingerprint file " + file, e);
+            }
+        }
+    }
+    
+    /**
+     * Compares the stored fingerprint with the current fingerprint. The stored fingerprint
+     * is removed.
+     * @param connection An admin connection.
+     * @param user The user for which the privileges are to be set.
+     * @return True if the stored fingerprint matches.
+     */
+    public boolean matches(Connection connection, String user) {
+        if (!file.exists())
+            return false;
+        
+        try {
+            String stored = new String(CoreUtilities.readFile(file), "UTF-8");
+            return stored.equals(compute(connection, user));
+        } catch (Exception e) {
+            logger.error("Could not compare the schema fingerprint", e);
+            return false;
+        } finally {
+            delete();
+        }
+    }
+    
+    /**
+     * Removes the stored fingerprint, forcing a full validation on the next start up.
+     */
+    public void delete() {
+        if (file.exists() && !file.delete())
+            logger.warn("Could not delete the schema fingerprint " + file);
+    }
+    
+    private String compute(Connection connection, String user) throws SQLException, NoSuchAlgorithmException {
+        StringBuffer sb = new StringBuffer();
+        
+        sb.append(DcConfig.getInstance().getVersion()).append('\n');
+        sb.append(new DcDatabase().getVersion(connection)).append('\n');
+        sb.append(user).append('\n');
+        
+        for (DcModule module : DcModules.getAllModules()) {
+            sb.append(module.getIndex()).append(' ');
+            sb.append(module.getTableName()).append(' ');
+            sb.append(module.getType()).append(' ');
+            sb.append(module.isAbstract()).append('\n');
+            
+            for (DcField field : module.getFields()) {
+                sb.append(' ').append(field.getIndex());
+                sb.append(' ').append(field.getDatabaseFieldName());
+                sb.append(' ').append(field.getDataBaseFieldType());
+                sb.append(' ').append(field.getValueType());
+                sb.append(' ').append(field.getReferenceIdx());
+                sb.append(' ').append(field.getMaximumLength());
+                sb.append(' ').append(field.isUiOnly()).append('\n');
+            }
+        }
+        
+        SchemaCatalog catalog = new SchemaCatalog(connection);
+        for (String table : catalog.getTables()) {
+            sb.append(table);
+            for (SchemaCatalog.Column column : catalog.getColumns(table))
+                sb.append(' ').append(column);
+            sb.append('\n');
+        }
+        
+        append(sb, new File(DcConfig.getInstance().getDatabaseDir(), "storage.properties"));
+        
+        File[] files = new File(DcConfig.getInstance().getUpgradeDir()).listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files)
+                append(sb, f);
+        }
+        
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hash;
+        try {
+            hash = digest.digest(sb.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            hash = digest.digest(sb.toString().getBytes());
+        }
+        
+        StringBuffer fingerprint = new StringBuffer();
+        for (byte b : hash)
+            fingerprint.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+        
+        return fingerprint.toString();
+    }
+    
+    private void append(StringBuffer sb, File file) {
+        sb.append(file.getName()).append(' ');
+        sb.append(file.exists() ? file.length() + " " + file.lastModified() : "-").append('\n');
+    }
+}
@@ -80,10 +80,14 @@ public class SelectQuery extends Query {
         try {
             conn = DatabaseManager.getInstance().getAdminConnection();
             stmt = conn.createStatement();
+            
+            long start = System.currentTimeMillis();
             rs = stmt.executeQuery(sql);
-            items.addAll(DataManager.getInstance().convert(rs, fields));
+            items.addAll(DataManager.getInstance().convert(getUser(), rs, fields));
             setSuccess(true);
             
+            SlowQueryLog.getInstance().log(conn, getUser(), sql, null, System.currentTimeMillis() - start, items.size());
+            
         } catch (SQLException e) {
             logger.error("Error (" + e +") while executing query: " + sql, e);
             setSuccess(false);
@@ -0,0 +1,176 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Date;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.security.SecuredUser;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.RollingFileAppender;
+
+/**
+ * Writes the queries exceeding the configured threshold to a dedicated log file 
+ * (slow_queries.log in the database directory). Next to the statement, its parameters, 
+ * the user and the number of rows, the execution plan of HSQLDB (EXPLAIN PLAN FOR) is 
+ * logged which shows whether indexes have been used.
+ */
+public class SlowQueryLog {
+
+    private static Logger logger = Logger.getLogger(SlowQueryLog.class.getName());
+    
+    private static SlowQueryLog instance = new SlowQueryLog();
+    
+    private Logger log;
+    
+    // milliseconds; a negative value disables the log
+    private volatile long threshold = 1000;
+    
+    private SlowQueryLog() {}
+
+    /**
+     * Retrieves the sole instance of this class
+     */
+    public static SlowQueryLog getInstance() {
+        return instance;
+    }
+    
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the threshold in milliseconds. Queries taking at least this long are logged.
+     * Use a negative value to disable the slow query log.
+     */
+    public void setThreshold(long threshold) {
+        this.threshold = threshold;
+    }
+    
+    /**
+     * Indicates whether a query taking the given time should be logged.
+     */
+    public boolean isSlow(long millis) {
+        return threshold >= 0 && millis >= threshold;
+    }
+    
+    /**
+     * Logs the query when it exceeded the threshold.
+     * @param c The connection the query was executed on; used to retrieve the execution plan.
+     * @param su The user executing the query.
+     * @param sql The statement.
+     * @param parameters The bound parameters (optional).
+     * @param millis The execution time (including fetching the results).
+     * @param rows The number of rows retrieved.
+     */
+    public void log(Connection c, SecuredUser su, String sql, Collection<Object> parameters, long millis, int rows) {
+        if (!isSlow(millis))
+            return;
+        
+        StringBuffer sb = new StringBuffer();
+        sb.append("Slow query [" + millis + "ms, " + rows + " rows, user " + (su != null ? su.getUsername() : "-") + 
+                  ", " + new Date() + "]\n");
+        sb.append("SQL: " + sql + "\n");
+        sb.append("Parameters: " + (parameters == null || parameters.isEmpty() ? "none" : parameters.toString()) + "\n");
+        sb.append("Plan:\n");
+        sb.append(getPlan(c, sql, parameters));
+        
+        getLog().warn(sb.toString());
+    }
+    
+    private String getPlan(Connection c, String sql, Collection<Object> parameters) {
+        StringBuffer sb = new StringBuffer();
+        Statement stmt = null;
+        
+        try {
+            ResultSet rs;
+            if (parameters == null || parameters.isEmpty()) {
+                stmt = c.createStatement();
+                rs = stmt.executeQuery("EXPLAIN PLAN FOR " + sql);
+            } else {
+                PreparedStatement ps = c.prepareStatement("EXPLAIN PLAN FOR " + sql);
+                stmt = ps;
+                
+                int pos = 1;
+                for (Object parameter : parameters)
+                    ps.setObject(pos++, parameter);
+                
+                rs = ps.executeQuery();
+            }
+            
+            while (rs.next()) {
+                sb.append(rs.getString(1));
+                sb.append("\n");
+            }
+            
+            rs.close();
+        } catch (SQLException se) {
+            sb.append("The execution plan could not be retrieved: " + se.getMessage() + "\n");
+        } finally {
+            try {
+                if (stmt != null) stmt.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close the statement", se);
+            }
+        }
+        
+        return sb.toString();
+    }
+    
+    private synchronized Logger getLog() {
+        if (log == null) {
+            log = Logger.getLogger("net.datacrow.server.db.SlowQueries");
+            log.setAdditivity(false);
+            log.setLevel(Level.INFO);
+            
+            File file = new File(DcConfig.getInstance().getDatabaseDir(), "slow_queries.log");
+            try {
+                RollingFileAppender appender = new RollingFileAppender(new PatternLayout("%m%n"), file.toString(), true);
+                appender.setMaxFileSize("5MB");
+                appender.setMaxBackupIndex(2);
+                log.addAppender(appender);
+                
+                logger.info("Slow queries (taking " + threshold + "ms or longer) are logged to " + file);
+            } catch (IOException ioe) {
+                logger.error("Could not create the slow query log " + file + ", slow queries are logged to the default log", ioe);
+                log.setAdditivity(true);
+            }
+        }
+        
+        return log;
+    }
+}
@@ -0,0 +1,324 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.modules.DcModule;
+import net.datacrow.core.modules.DcModules;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Determines how the tables of the modules are stored by HSQLDB. MEMORY tables are 
+ * kept in memory entirely (and are loaded from the script file on start up), CACHED 
+ * tables are stored in the data file of which only part is kept in memory (the row cache).
+ * 
+ * The policy is read from the storage.properties file in the database folder:
+ * <ul>
+ * <li>default: the table type used for all modules (MEMORY or CACHED, default MEMORY)</li>
+ * <li>table.[table name]: the table type for a specific module table</li>
+ * <li>cache.rows: the maximum number of rows of CACHED tables kept in memory</li>
+ * <li>cache.size: the maximum size (in KB) of the rows of CACHED tables kept in memory</li>
+ * </ul>
+ * 
+ * Changes to the file are picked up while the database is in use (see {@link #startWatching()}).
+ */
+public class StoragePolicy {
+    
+    private static Logger logger = Logger.getLogger(StoragePolicy.class.getName());
+    
+    public static final String _MEMORY = "MEMORY";
+    public static final String _CACHED = "CACHED";
+    
+    private static final int _WATCH_INTERVAL = 30000;
+    
+    private static StoragePolicy instance;
+    
+    private volatile Properties properties = new Properties();
+    private volatile long loaded;
+    
+    private final File file = new File(DcConfig.getInstance().getDatabaseDir(), "storage.properties");
+    
+    private Watcher watcher;
+    
+    private StoragePolicy() {
+        load();
+    }
+    
+    /**
+     * Retrieves the sole instance of this class
+     */
+    public static synchronized StoragePolicy getInstance() {
+        if (instance == null)
+            instance = new StoragePolicy();
+        
+        return instance;
+    }
+    
+    /**
+     * Reads the policy from the storage.properties file again.
+     */
+    public synchronized void reload() {
+        load();
+        logger.debug("The storage policy has been reloaded from " + file);
+    }
+    
+    /**
+     * Starts checking the storage.properties file for changes. Changes are applied on the
+     * open database (see {@link DatabaseManager#convertTableTypes()}).
+     */
+    protected synchronized void startWatching() {
+        if (watcher == null) {
+            watcher = new Watcher();
+            watcher.start();
+        }
+    }
+    
+    /**
+     * Stops checking the storage.properties file for changes.
+     */
+    protected synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+    
+    /**
+     * The table type (MEMORY or CACHED) to be used for the specified module.
+     * @param module
+     */
+    public String getTableType(DcModule module) {
+        String type = properties.getProperty("table." + module.getTableName().toLowerCase(), 
+                      properties.getProperty("default", _MEMORY));
+        
+        type = type.trim().toUpperCase();
+        return _CACHED.equals(type) ? _CACHED : _MEMORY;
+    }
+    
+    /**
+     * Applies the row cache settings on the database.
+     * @param connection
+     */
+    protected void apply(Connection connection) {
+        Statement stmt = null;
+        try {
+            stmt = connection.createStatement();
+            
+            String rows = properties.getProperty("cache.rows");
+            String size = properties.getProperty("cache.size");
+            
+            if (rows != null && rows.trim().length() > 0)
+                stmt.execute("SET FILES CACHE ROWS " + Integer.parseInt(rows.trim()));
+            
+            if (size != null && size.trim().length() > 0)
+                stmt.execute("SET FILES CACHE SIZE " + Integer.parseInt(size.trim()));
+            
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid cache setting in " + file, nfe);
+        } catch (SQLException se) {
+            logger.error("Could not apply the cache settings of " + file, se);
+        } finally {
+            try {
+                if (stmt != null) stmt.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close database resources", se);
+            }
+        }
+    }
+    
+    /**
+     * Converts the existing tables of which the table type differs from the policy.
+     * The conversion is performed on the open database; the data does not need to be
+     * exported and imported.
+     * @param connection An admin connection.
+     * @return The number of converted tables.
+     */
+    public int convert(Connection connection) {
+        Map<String, String> current = getTableTypes(connection);
+        
+        int converted = 0;
+        Statement stmt = null;
+        try {
+            stmt = connection.createStatement();
+            
+            String type;
+            String table;
+            for (DcModule module : DcModules.getAllModules()) {
+                
+                if (module.isAbstract()) continue;
+                
+                table = module.getTableName().toUpperCase();
+                type = getTableType(module);
+                
+                if (!current.containsKey(table) || type.equals(current.get(table)))
+                    continue;
+                
+                try {
+                    long start = System.currentTimeMillis();
+                    stmt.execute("SET TABLE " + table + " TYPE " + type);
+                    converted++;
+                    logger.info("Converted table " + table + " from " + current.get(table) + " to " + type + 
+                                " in " + (System.currentTimeMillis() - start) + "ms");
+                } catch (SQLException se) {
+                    logger.error("Could not convert table " + table + " to " + type, se);
+                }
+            }
+            
+            if (converted > 0)
+                stmt.execute("CHECKPOINT");
+            
+        } catch (SQLException se) {
+            logger.error("Could not convert the tables to the configured table types", se);
+        } finally {
+            try {
+                if (stmt != null) stmt.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close database resources", se);
+            }
+        }
+        
+        return converted;
+    }
+    
+    /**
+     * Retrieves the current table type per table from the catalog.
+     */
+    private Map<String, String> getTableTypes(Connection connection) {
+        Map<String, String> types = new HashMap<String, String>();
+        
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery(
+                    "SELECT TABLE_NAME, HSQLDB_TYPE FROM INFORMATION_SCHEMA.SYSTEM_TABLES " +
+                    "WHERE TABLE_SCHEM = 'PUBLIC' AND TABLE_TYPE = 'TABLE'");
+            
+            while (rs.next())
+                types.put(rs.getString(1).toUpperCase(), rs.getString(2).toUpperCase());
+            
+        } catch (SQLException se) {
+            logger.error("Could not retrieve the table types", se);
+        } finally {
+            try {
+                if (rs != null) rs.close();
+                if (stmt != null) stmt.close();
+            } catch (SQLException se) {
+                logger.debug("Could not close database resources", se);
+            }
+        }
+        
+        return types;
+    }
+    
+    private void load() {
+        Properties properties = new Properties();
+        
+        if (!file.exists()) {
+            properties.setProperty("default", _MEMORY);
+            this.properties = properties;
+            save();
+            loaded = file.lastModified();
+            return;
+        }
+        
+        loaded = file.lastModified();
+        
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            properties.load(fis);
+            
+            // replaced as a whole; the policy can be in use while it is being reloaded
+            this.properties = properties;
+        } catch (IOException e) {
+            logger.error("Failed to load the storage policy from " + file, e);
+        } finally {
+            try {
+                if (fis != null) fis.close();
+            } catch (IOException e) {
+                logger.error("Could not release storage policy file " + file, e);
+            }
+        }
+    }
+    
+    private void save() {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file);
+            properties.store(fos, "Table types (MEMORY or CACHED) per table: table.<table name>=CACHED. Row cache: cache.rows and cache.size (KB).");
+        } catch (IOException e) {
+            logger.error("Failed to persist the storage policy to " + file, e);
+        } finally {
+            try {
+                if (fos != null) fos.close();
+            } catch (IOException e) {
+                logger.error("Could not release storage policy file " + file, e);
+            }
+        }
+    }
+    
+    /**
+     * Applies the changes of the storage.properties file as soon as these have been made.
+     */
+    private class Watcher extends Thread {
+        
+        private Watcher() {
+            super("storagePolicyWatcher");
+            setDaemon(true);
+            setPriority(Thread.MIN_PRIORITY);
+        }
+        
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    sleep(_WATCH_INTERVAL);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                
+                if (file.lastModified() != loaded) {
+                    logger.info("The storage policy " + file + " has been changed, the changes are applied");
+                    DatabaseManager.getInstance().convertTableTypes();
+                }
+            }
+        }
+    }
+}
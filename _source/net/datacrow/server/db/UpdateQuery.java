@@ -66,6 +66,43 @@ public class UpdateQuery extends Query {
         dco = null;
     }
     
+    @Override
+    protected String getItemKey() {
+        return dco != null ? getModuleIdx() + "/" + dco.getID() : null;
+    }
+    
+    /**
+     * Merges the changes of the specified update into this (not yet executed) update.
+     * Only the field values are merged; an update which changes the children of the item
+     * is not merged and has to be executed by itself.
+     * @param query An update of the same item.
+     * @return True if the changes have been merged.
+     */
+    protected boolean merge(UpdateQuery query) {
+        if (dco == null || query.dco == null || 
+           !getUser().getUsername().equals(query.getUser().getUsername()))
+            return false;
+        
+        if (dco != query.dco) {
+            if (query.dco.getDeleteExistingChildren())
+                return false;
+            
+            if (query.dco.getCurrentChildren() != null) {
+                for (DcObject child : query.dco.getCurrentChildren()) {
+                    if (child.isChanged())
+                        return false;
+                }
+            }
+            
+            for (DcField field : query.dco.getFields()) {
+                if (query.dco.isChanged(field.getIndex()))
+                    dco.setValue(field.getIndex(), query.dco.getValue(field.getIndex()));
+            }
+        }
+        
+        return true;
+    }
+    
     @SuppressWarnings("unchecked")
     @Override
     public List<DcObject> run() {
@@ -122,6 +159,7 @@ public class UpdateQuery extends Query {
                         sql = "DELETE FROM " + mappingMod.getTableName() + " WHERE " +  
                                      mappingMod.getField(DcMapping._A_PARENT_ID).getDatabaseFieldName() + " = '" + dco.getID() + "'";
                         stmt.execute(sql);
+                        ModuleVersions.getInstance().invalidate(mappingMod.getIndex());
                     }
                 } else if (dco.isChanged(field.getIndex()) && !field.isUiOnly()) {
                     if (sbValues.length() > 0)
@@ -167,6 +205,7 @@ public class UpdateQuery extends Query {
                     stmt.execute("DELETE FROM " + p.getTableName() + " WHERE " +
                             p.getField(Picture._A_OBJECTID).getDatabaseFieldName() + " = '" + dco.getID() + "' AND " +
                             p.getField(Picture._B_FIELD).getDatabaseFieldName() + " = '" +  p.getValue(Picture._B_FIELD) + "'");
+                    ModuleVersions.getInstance().invalidate(DcModules._PICTURE);
                     deleteImage(p);    
                 }
             }
@@ -182,6 +221,7 @@ public class UpdateQuery extends Query {
                 DatabaseManager.getInstance().executeSQL(getUser(),
                         "DELETE FROM " + dco.getModule().getChild().getTableName() + " WHERE " + 
                         dco.getModule().getChild().getField(dco.getModule().getChild().getParentReferenceFieldIndex()).getDatabaseFieldName() + " = '" + dco.getID() + "'");
+                ModuleVersions.getInstance().invalidate(dco.getModule().getChild().getIndex());
             }
             
             boolean exists = false;
@@ -206,10 +246,12 @@ public class UpdateQuery extends Query {
             setSuccess(true);
             pictures.clear();
         } catch (SQLException e) {
-            setSuccess(false);
+            setError(e);
             logger.error("An error occured while running the query", e);
         }
         
+        ModuleVersions.getInstance().invalidate(getModuleIdx());
+        
         try {
             if (stmt != null) stmt.close();
         } catch (SQLException e) {
@@ -0,0 +1,357 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.upgrade;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.console.IPollerTask;
+import net.datacrow.core.server.Connector;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A data migration step of the {@link SystemUpgrade}. Offers the facilities needed to migrate 
+ * large amounts of data:
+ * <ul>
+ * <li>JDBC batching of row updates ({@link #executeBatch(Connection, String, List)})</li>
+ * <li>parallel execution of file and image work on a fork join pool ({@link #parallel(List, Task)})</li>
+ * <li>checkpoints; completed units of work are registered in a checkpoint file in the upgrade 
+ * folder so that an interrupted migration resumes where it stopped ({@link #setCompleted(String)})</li>
+ * <li>throughput reporting on the poller task of the connector ({@link #processed(int)})</li>
+ * </ul>
+ */
+public abstract class Migration {
+
+    private static Logger logger = Logger.getLogger(Migration.class.getName());
+    
+    private static final int _BATCH_SIZE = 500;
+    private static final int _REPORT_INTERVAL = 500;
+    
+    private final String name;
+    private final File checkpointFile;
+    private final Collection<String> completed = new HashSet<String>();
+    
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long total = -1;
+    private volatile long lastReport = 0;
+    private long started;
+    
+    private Writer checkpoints;
+    private IPollerTask poller;
+    private ForkJoinPool pool;
+    
+    /**
+     * @param name The name of the migration. Also used to name the checkpoint file.
+     */
+    public Migration(String name) {
+        this.name = name;
+        this.checkpointFile = new File(DcConfig.getInstance().getUpgradeDir(), 
+                              name.toLowerCase().replaceAll("[^a-z0-9]", "_") + ".checkpoint");
+    }
+    
+    /**
+     * Performs the actual migration.
+     */
+    protected abstract void migrate() throws Exception;
+    
+    /**
+     * Runs the migration. Once the migration has completed successfully the checkpoints are removed.
+     * When the migration fails, or when units of work could not be processed, the checkpoints are 
+     * kept and the migration will resume on the next run. Checkpoints which cannot be written 
+     * do not fail the migration; the migration then starts over on the next run.
+     * @return False when units of work could not be processed (see {@link #failed(String, Exception)}).
+     * @throws Exception 
+     */
+    public final boolean run() throws Exception {
+        loadCheckpoints();
+        
+        Connector connector = DcConfig.getInstance().getConnector();
+        poller = connector != null ? connector.getPollerTask(Thread.currentThread(), name) : null;
+        
+        if (poller != null)
+            poller.start();
+        
+        if (completed.size() > 0)
+            logger.info(name + " is resumed; " + completed.size() + " units of work have been completed before");
+        
+        started = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            try {
+                checkpoints = new FileWriter(checkpointFile, true);
+            } catch (IOException e) {
+                logger.warn("Could not open checkpoint file " + checkpointFile + "; the progress of " + name + " is not registered", e);
+            }
+            
+            migrate();
+            success = failed.get() == 0;
+            
+            if (success)
+                logger.info(name + " completed; " + getThroughput());
+            else 
+                logger.warn(name + " completed; " + getThroughput() + ", " + failed.get() + " failed. " + 
+                            "The checkpoints are kept; the failed units of work are processed on the next run");
+        } finally {
+            try {
+                if (checkpoints != null) checkpoints.close();
+            } catch (IOException e) {
+                logger.debug("Could not release checkpoint file " + checkpointFile, e);
+            }
+            
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+            
+            if (success && checkpointFile.exists() && !checkpointFile.delete())
+                logger.warn("Could not delete checkpoint file " + checkpointFile);
+            
+            if (poller != null)
+                poller.finished(success);
+        }
+        
+        return success;
+    }
+    
+    /**
+     * Indicates if the unit of work has been completed during a previous (interrupted) run.
+     * @param unit The identifier of the unit of work (such as a table or a file name).
+     */
+    protected boolean isCompleted(String unit) {
+        synchronized (completed) {
+            return completed.contains(unit);
+        }
+    }
+    
+    /**
+     * Registers the unit of work as completed.
+     * @param unit The identifier of the unit of work (such as a table or a file name).
+     */
+    protected void setCompleted(String unit) {
+        synchronized (completed) {
+            completed.add(unit);
+            
+            if (checkpoints == null)
+                return;
+            
+            try {
+                checkpoints.write(unit + "\n");
+                checkpoints.flush();
+            } catch (IOException e) {
+                logger.error("Could not register the checkpoint " + unit + " in " + checkpointFile, e);
+            }
+        }
+    }
+    
+    /**
+     * Registers a unit of work which could not be processed. The migration continues but is 
+     * not considered successful; its checkpoints are kept.
+     * @param unit The identifier of the unit of work (such as a table or a file name).
+     */
+    protected void failed(String unit, Exception e) {
+        failed.incrementAndGet();
+        logger.warn(name + ": could not process " + unit, e);
+    }
+    
+    /**
+     * The number of units of work which could not be processed so far.
+     */
+    protected long getFailed() {
+        return failed.get();
+    }
+    
+    /**
+     * Sets the total amount of items to be processed (used to report the progress).
+     */
+    protected void setTotal(long total) {
+        this.total = total;
+    }
+    
+    /**
+     * Registers processed items and reports the throughput.
+     */
+    protected void processed(int count) {
+        processed.addAndGet(count);
+        
+        long now = System.currentTimeMillis();
+        if (poller != null && now - lastReport > _REPORT_INTERVAL) {
+            lastReport = now;
+            poller.setText(name + ": " + getThroughput());
+        }
+    }
+    
+    private String getThroughput() {
+        long count = processed.get();
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        return count + (total > -1 ? "/" + total : "") + " items processed (" + ((count * 1000) / elapsed) + " items/s)";
+    }
+    
+    /**
+     * Executes the statement for each of the rows using JDBC batches. Every batch is committed 
+     * separately.
+     * @param c The connection.
+     * @param sql The parameterized statement.
+     * @param rows The parameter values per row.
+     * @return The number of affected rows.
+     * @throws SQLException
+     */
+    protected int executeBatch(Connection c, String sql, List<Object[]> rows) throws SQLException {
+        boolean autoCommit = c.getAutoCommit();
+        PreparedStatement ps = c.prepareStatement(sql);
+        
+        int affected = 0;
+        try {
+            c.setAutoCommit(false);
+            
+            int count = 0;
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++)
+                    ps.setObject(i + 1, row[i]);
+                
+                ps.addBatch();
+                
+                if (++count % _BATCH_SIZE == 0 || count == rows.size()) {
+                    for (int result : ps.executeBatch())
+                        affected += Math.max(0, result);
+                    
+                    c.commit();
+                    processed(count % _BATCH_SIZE == 0 ? _BATCH_SIZE : count % _BATCH_SIZE);
+                }
+            }
+        } catch (SQLException se) {
+            c.rollback();
+            throw se;
+        } finally {
+            ps.close();
+            c.setAutoCommit(autoCommit);
+        }
+        
+        return affected;
+    }
+    
+    /**
+     * Executes the task for each of the items on a fork join pool. Failures are registered (see 
+     * {@link #failed(String, Exception)}); the remaining items are still processed. Every processed 
+     * item is counted (see {@link #processed(int)}).
+     * @param items The items to process.
+     * @param task The task to execute per item.
+     */
+    protected <T> void parallel(List<T> items, Task<T> task) {
+        if (items.isEmpty())
+            return;
+        
+        if (pool == null)
+            pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        
+        pool.invoke(new Work<T>(items, 0, items.size(), task));
+    }
+    
+    /**
+     * A unit of work executed for a single item.
+     */
+    public interface Task<T> {
+        void execute(T item) throws Exception;
+    }
+    
+    private class Work<T> extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private static final int _THRESHOLD = 16;
+        
+        private final List<T> items;
+        private final int from;
+        private final int to;
+        private final Task<T> task;
+        
+        private Work(List<T> items, int from, int to, Task<T> task) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= _THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        task.execute(items.get(i));
+                    } catch (Exception e) {
+                        failed(String.valueOf(items.get(i)), e);
+                    }
+                    
+                    processed(1);
+                }
+            } else {
+                int middle = from + ((to - from) / 2);
+                invokeAll(new Work<T>(items, from, middle, task), 
+                          new Work<T>(items, middle, to, task));
+            }
+        }
+    }
+    
+    private void loadCheckpoints() {
+        completed.clear();
+        
+        if (!checkpointFile.exists())
+            return;
+        
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(checkpointFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0)
+                    completed.add(line);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to load the checkpoints of " + name, e);
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                logger.debug("Could not release checkpoint file " + checkpointFile, e);
+            }
+        }
+    }
+}
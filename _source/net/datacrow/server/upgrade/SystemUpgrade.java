@@ -33,11 +33,11 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.datacrow.core.DcConfig;
 import net.datacrow.core.Version;
-import net.datacrow.core.console.IPollerTask;
 import net.datacrow.core.modules.DcModule;
 import net.datacrow.core.modules.DcModules;
 import net.datacrow.core.objects.DcField;
@@ -145,36 +145,20 @@ public class SystemUpgrade {
         }
     }
     
+    /**
+     * Saves the icons to the image folder. As before the icons are not essential to the 
+     * upgrade; icons which could not be saved do not fail the upgrade.
+     */
     private void saveIcons() {
-        Connection conn = DatabaseManager.getInstance().getAdminConnection();
         Connector connector = DcConfig.getInstance().getConnector();
         connector.displayMessage("Data Crow will now save all icons to the image folder");
         
-        String ID;
-        String icon;
-        for (DcModule m : DcModules.getAllModules()) {
-            DcField fld = m.getIconField();
-            
-            if (fld != null) {
-                try {
-                    Statement stmt = conn.createStatement();
-                    
-                    String sql = "SELECT ID, " + fld.getDatabaseFieldName() + " FROM " + 
-                                 m.getTableName() + " WHERE " + fld.getDatabaseFieldName() + " IS NOT NULL AND LENGTH(" + fld.getDatabaseFieldName() + ") > 1"; 
-                    ResultSet rs = stmt.executeQuery(sql);
-                    
-                    while (rs.next()) {
-                        ID = rs.getString(1);
-                        icon = rs.getString(2);
-
-                        File file = new File(DcConfig.getInstance().getImageDir(), "icon_" + ID + ".jpg");
-                        CoreUtilities.writeToFile(Base64.decode(icon.toCharArray()), file);
-                    }
-                } catch (Exception e) {
-                    logger.error("Could not save icons for module " + m, e);
-                }
-            }
-            
+        try {
+            if (!new IconMigration().run())
+                connector.displayError("Not all icons could be saved to the image folder. See the log file for details.");
+        } catch (Exception e) {
+            logger.error("Could not save the icons to the image folder", e);
+            connector.displayError("Could not save the icons to the image folder. Error: " + e);
         }
     }
     
@@ -184,29 +168,34 @@ public class SystemUpgrade {
         connector.displayMessage("Data Crow will now convert the Music Track numbers");
         
         try {
-            Statement stmt = conn.createStatement();
-            
-            DcModule module = DcModules.get(DcModules._MUSIC_TRACK);
-            String fld = module.getField(MusicTrack._F_TRACKNUMBER).getDatabaseFieldName();
+            final DcModule module = DcModules.get(DcModules._MUSIC_TRACK);
+            final String fld = module.getField(MusicTrack._F_TRACKNUMBER).getDatabaseFieldName();
             
+            Statement stmt = conn.createStatement();
             String sql = "SELECT ID, " + fld + " FROM " + module.getTableName() + " WHERE " + fld + " IS NOT NULL AND LENGTH(" + fld + ") = 1"; 
             ResultSet rs = stmt.executeQuery(sql);
             
-            String ID; 
+            final List<Object[]> rows = new ArrayList<Object[]>();
             String track;
             while (rs.next()) {
-                ID = rs.getString(1);
                 track = rs.getString(2);
                 
-                if (Character.isDigit(track.charAt(0))) {
-                    sql = "UPDATE " + module.getTableName() + " SET " + fld + " = '0" + track + "' WHERE ID = '" + ID + "'";
-                    stmt.execute(sql);
-                }
+                if (Character.isDigit(track.charAt(0)))
+                    rows.add(new Object[] {"0" + track, rs.getString(1)});
             }
             
             rs.close();
             stmt.close();
             
+            new Migration("Music Track Renumbering") {
+                @Override
+                protected void migrate() throws Exception {
+                    setTotal(rows.size());
+                    executeBatch(DatabaseManager.getInstance().getAdminConnection(), 
+                            "UPDATE " + module.getTableName() + " SET " + fld + " = ? WHERE ID = ?", rows);
+                }
+            }.run();
+            
             connector.displayMessage("The conversion of the Music Track numbers was successfull");
             
         } catch (Exception e) {
@@ -235,58 +224,19 @@ public class SystemUpgrade {
             
             if (!dir.exists()) return;
             
-            File targetDir = new File(DcConfig.getInstance().getImageDir());
-            
             Connector conn = DcConfig.getInstance().getConnector();
             
             conn.displayMessage("The images will be moved and new scaled version will be created. "
                     + "This process can take up to 10 minutes.");
             
-            IPollerTask poller = conn.getPollerTask(this, "Image Moving Task");
-            
-            if (poller != null) {
-                poller.start();
-            }
-            
-            boolean success = true;
+            boolean success;
             try {
-                File f;
-                String[] files = dir.list();
-                
-                int counter = 1;
-                for (String file : files) {
-                    f = new File(dir,  file);
-                    
-                    if (f.isDirectory()) continue;
-                    
-                    if (file.endsWith("_small.jpg")) {
-                        f.delete();
-                    } else {
-                        CoreUtilities.rename(f, new File(targetDir, file), true);
-                    }
-                    
-                    if (poller != null) poller.setText("Moved image " + (counter++) + "/" + files.length);
-                }
+                // the old folder is kept when images could not be moved or scaled
+                success = new ImageMigration(dir).run();
                 
-                Picture p = new Picture();
-                DcImageIcon icon;
-                files = targetDir.list();
-                counter = 1;
-                for (String file : files) {
-                    try {
-                        f = new File(targetDir,  file);
-                        
-                        if (f.isDirectory()) continue;
-                        
-                        icon = new DcImageIcon(f.toString());
-                        CoreUtilities.writeScaledImageToFile(icon, new File(p.getScaledFilename(f.toString())));
-                        icon.flush();
-                        
-                        if (poller != null) poller.setText("Creating thumbnail " + (counter++) + "/" + files.length);
-                    } catch (Exception e) {
-                        logger.warn(e, e);
-                    }
-                }
+                if (!success)
+                    conn.displayError("Not all images could be moved from the old (" + dir + ") to the new location (" +
+                            DcConfig.getInstance().getImageDir() + "). See the log file for details.");
             } catch (Exception e) {
                 success = false;
                 String msg = e.toString() + ". Images could not be moved from the old (" + dir + ") to the new location (" +
@@ -310,20 +260,134 @@ public class SystemUpgrade {
                 dir.delete();
                 new File(DcConfig.getInstance().getDataDir(), "wwwroot/").delete();
                 
-                if (poller != null) {
-                    poller.finished(true);
-                }
-                
                 conn.displayMessage("All done! Images have been moved and new scaled versions have been created. Old directory has been removed");
                 
                 if (new File(DcConfig.getInstance().getDataDir(), "wwwroot/").exists()) 
                     conn.displayMessage("The old folder could not be removed. Please delete the following folder manually: " + 
                                 new File(DcConfig.getInstance().getDataDir(), "wwwroot/"));
             }
+        }
+    }
+    
+    /**
+     * Moves the images to the image folder and creates the scaled versions. The files are
+     * processed in parallel.
+     */
+    private class ImageMigration extends Migration {
+        
+        private final File dir;
+        
+        private ImageMigration(File dir) {
+            super("Image Moving Task");
+            this.dir = dir;
+        }
+        
+        @Override
+        protected void migrate() throws Exception {
+            final File targetDir = new File(DcConfig.getInstance().getImageDir());
+            
+            List<File> files = new ArrayList<File>();
+            for (String file : dir.list()) {
+                if (!new File(dir, file).isDirectory())
+                    files.add(new File(dir, file));
+            }
+            
+            setTotal(files.size());
+            
+            // moved files are no longer in the source folder; this step is resumed automatically
+            parallel(files, new Task<File>() {
+                @Override
+                public void execute(File f) throws Exception {
+                    if (f.getName().endsWith("_small.jpg"))
+                        f.delete();
+                    else 
+                        CoreUtilities.rename(f, new File(targetDir, f.getName()), true);
+                }
+            });
             
-            if (poller != null) {
-                poller.finished(true);
+            files.clear();
+            for (String file : targetDir.list()) {
+                if (!isCompleted(file) && !new File(targetDir, file).isDirectory())
+                    files.add(new File(targetDir, file));
             }
+            
+            setTotal(files.size());
+            
+            parallel(files, new Task<File>() {
+                @Override
+                public void execute(File f) throws Exception {
+                    DcImageIcon icon = new DcImageIcon(f.toString());
+                    CoreUtilities.writeScaledImageToFile(icon, new File(new Picture().getScaledFilename(f.toString())));
+                    icon.flush();
+                    
+                    setCompleted(f.getName());
+                }
+            });
+        }
+    }
+    
+    /**
+     * Saves the icons stored in the database to the image folder. The icons are decoded and 
+     * written in parallel; the progress is registered per module.
+     */
+    private class IconMigration extends Migration {
+        
+        private static final int _CHUNK_SIZE = 500;
+        
+        private IconMigration() {
+            super("Icon Migration");
+        }
+        
+        @Override
+        protected void migrate() throws Exception {
+            Connection conn = DatabaseManager.getInstance().getAdminConnection();
+            
+            List<String[]> icons;
+            for (DcModule m : DcModules.getAllModules()) {
+                DcField fld = m.getIconField();
+                
+                if (fld == null || isCompleted(m.getTableName())) continue;
+                
+                long failed = getFailed();
+                try {
+                    Statement stmt = conn.createStatement();
+                    
+                    String sql = "SELECT ID, " + fld.getDatabaseFieldName() + " FROM " + 
+                                 m.getTableName() + " WHERE " + fld.getDatabaseFieldName() + " IS NOT NULL AND LENGTH(" + fld.getDatabaseFieldName() + ") > 1"; 
+                    ResultSet rs = stmt.executeQuery(sql);
+                    
+                    icons = new ArrayList<String[]>();
+                    while (rs.next()) {
+                        icons.add(new String[] {rs.getString(1), rs.getString(2)});
+                        
+                        if (icons.size() == _CHUNK_SIZE) {
+                            save(icons);
+                            icons.clear();
+                        }
+                    }
+                    
+                    save(icons);
+                    
+                    rs.close();
+                    stmt.close();
+                    
+                    // a module of which icons could not be saved is processed again on the next run
+                    if (getFailed() == failed)
+                        setCompleted(m.getTableName());
+                } catch (Exception e) {
+                    failed(m.getTableName(), e);
+                }
+            }
+        }
+        
+        private void save(List<String[]> icons) {
+            parallel(icons, new Task<String[]>() {
+                @Override
+                public void execute(String[] icon) throws Exception {
+                    File file = new File(DcConfig.getInstance().getImageDir(), "icon_" + icon[0] + ".jpg");
+                    CoreUtilities.writeToFile(Base64.decode(icon[1].toCharArray()), file);
+                }
+            });
         }
     }
     
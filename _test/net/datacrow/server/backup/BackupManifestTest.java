@@ -0,0 +1,163 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.backup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BackupManifestTest {
+
+    private static final String _HASH = "ab" + repeat('0', 62);
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void saveAndLoad() throws IOException {
+        BackupManifest manifest = new BackupManifest("datacrow_backup_2.zip");
+        manifest.setBase("datacrow_backup_1.zip");
+        manifest.put("data/datacrow.script", new BackupManifest.Entry(_HASH, 10, 20, "datacrow_backup_2.zip", false));
+        manifest.put("images/a b.jpg", new BackupManifest.Entry(_HASH, 30, 40, "datacrow_backup_1.zip", true));
+        
+        File file = folder.newFile("manifest");
+        manifest.save(file);
+        
+        BackupManifest loaded = BackupManifest.load(file);
+        assertEquals("datacrow_backup_2.zip", loaded.getArchive());
+        assertEquals("datacrow_backup_1.zip", loaded.getBase());
+        assertTrue(loaded.isIncremental());
+        assertEquals(2, loaded.getNames().size());
+        
+        BackupManifest.Entry entry = loaded.get("data/datacrow.script");
+        assertEquals(_HASH, entry.getHash());
+        assertEquals(10, entry.getSize());
+        assertEquals(20, entry.getModified());
+        assertEquals("datacrow_backup_2.zip", entry.getArchive());
+        assertFalse(entry.isBlob());
+        assertEquals("data/datacrow.script", entry.getEntryName("data/datacrow.script"));
+        
+        entry = loaded.get("images/a b.jpg");
+        assertEquals("datacrow_backup_1.zip", entry.getArchive());
+        assertTrue(entry.isBlob());
+        assertEquals("blobs/ab/" + _HASH + ".jpg", entry.getEntryName("images/a b.jpg"));
+    }
+    
+    @Test
+    public void loadMissingFile() throws IOException {
+        assertNull(BackupManifest.load(new File(folder.getRoot(), "missing")));
+    }
+    
+    @Test
+    public void loadWithoutStorageColumn() throws IOException {
+        String content = 
+                "# archive=datacrow_backup_1.zip\n" +
+                _HASH + "\t10\t20\tdatacrow_backup_1.zip\timages/a.jpg\n";
+        
+        BackupManifest manifest = BackupManifest.load(new ByteArrayInputStream(content.getBytes("UTF-8")));
+        
+        assertEquals("datacrow_backup_1.zip", manifest.getArchive());
+        assertFalse(manifest.isIncremental());
+        
+        // older manifests only hold files stored under their own name
+        BackupManifest.Entry entry = manifest.get("images/a.jpg");
+        assertFalse(entry.isBlob());
+        assertEquals("images/a.jpg", entry.getEntryName("images/a.jpg"));
+        assertEquals(10, entry.getSize());
+    }
+    
+    @Test
+    public void saveToStream() throws IOException {
+        BackupManifest manifest = new BackupManifest("datacrow_backup_1.zip");
+        manifest.put("settings/data crow.properties", new BackupManifest.Entry(_HASH, 1, 2, "datacrow_backup_1.zip", false));
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        manifest.save(bos);
+        
+        BackupManifest loaded = BackupManifest.load(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(manifest.getNames(), loaded.getNames());
+        assertNull(loaded.getBase());
+    }
+    
+    @Test
+    public void blobNames() {
+        assertTrue(BackupManifest.isBlob("images/A.JPG"));
+        assertFalse(BackupManifest.isBlob("data/datacrow.script"));
+        
+        assertEquals("blobs/ab/" + _HASH + ".png", BackupManifest.getBlobName(_HASH, "images/a.PNG"));
+        assertEquals("blobs/ab/" + _HASH, BackupManifest.getBlobName(_HASH, "images.dir/noextension"));
+    }
+    
+    @Test
+    public void createEntry() throws IOException {
+        File file = folder.newFile("a.jpg");
+        write(file, "content");
+        
+        BackupManifest manifest = new BackupManifest("datacrow_backup_2.zip");
+        BackupManifest.Entry entry = manifest.createEntry("images/a.jpg", file, null);
+        
+        assertEquals(BackupManifest.hash(file), entry.getHash());
+        assertEquals(file.length(), entry.getSize());
+        assertEquals("datacrow_backup_2.zip", entry.getArchive());
+        assertTrue(entry.isBlob());
+        
+        // unchanged; the content of the previous archive is referred to
+        BackupManifest.Entry previous = entry.copy("datacrow_backup_1.zip");
+        assertEquals("datacrow_backup_1.zip", manifest.createEntry("images/a.jpg", file, previous).getArchive());
+        
+        // changed size; the content is stored again
+        write(file, "changed content");
+        assertEquals("datacrow_backup_2.zip", manifest.createEntry("images/a.jpg", file, previous).getArchive());
+    }
+    
+    private void write(File file, String content) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+    
+    private static String repeat(char c, int count) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < count; i++)
+            sb.append(c);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,202 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.backup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BackupWriterTest {
+
+    // larger than the part prepared in memory
+    private static final int _LARGE = 5 * 1024 * 1024;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] text = "Data Crow\nData Crow\nData Crow\n".getBytes("UTF-8");
+        byte[] image = random(1024);
+        byte[] largeText = new byte[_LARGE];
+        byte[] largeImage = random(_LARGE);
+        
+        File archive = new File(folder.getRoot(), "backup.zip");
+        BackupWriter writer = new BackupWriter(archive, 2);
+        writer.add("version.txt", text);
+        writer.add("data/datacrow.script", write("datacrow.script", text));
+        writer.add("images/a.jpg", write("a.jpg", image));
+        writer.add("data/datacrow.data", write("datacrow.data", largeText));
+        writer.add("images/large.jpg", write("large.jpg", largeImage));
+        writer.close();
+        
+        ZipFile zip = new ZipFile(archive);
+        try {
+            assertEquals(5, zip.size());
+            assertEntry(zip, "version.txt", text, ZipEntry.DEFLATED);
+            assertEntry(zip, "data/datacrow.script", text, ZipEntry.DEFLATED);
+            assertEntry(zip, "images/a.jpg", image, ZipEntry.STORED);
+            assertEntry(zip, "data/datacrow.data", largeText, ZipEntry.DEFLATED);
+            assertEntry(zip, "images/large.jpg", largeImage, ZipEntry.STORED);
+        } finally {
+            zip.close();
+        }
+    }
+    
+    @Test
+    public void manyEntries() throws IOException {
+        File archive = new File(folder.getRoot(), "backup.zip");
+        BackupWriter writer = new BackupWriter(archive, 4);
+        for (int i = 0; i < 500; i++)
+            writer.add("entries/" + i + ".txt", String.valueOf(i).getBytes("UTF-8"));
+        writer.close();
+        
+        ZipFile zip = new ZipFile(archive);
+        try {
+            assertEquals(500, zip.size());
+            for (int i = 0; i < 500; i++)
+                assertEntry(zip, "entries/" + i + ".txt", String.valueOf(i).getBytes("UTF-8"), ZipEntry.DEFLATED);
+        } finally {
+            zip.close();
+        }
+    }
+    
+    @Test
+    public void missingFileFails() throws IOException {
+        BackupWriter writer = new BackupWriter(new File(folder.getRoot(), "backup.zip"), 2);
+        writer.add("data/missing.txt", new File(folder.getRoot(), "missing.txt"));
+        
+        try {
+            writer.close();
+            fail("A missing file should fail the archive");
+        } catch (IOException expected) {}
+    }
+    
+    @Test
+    public void missingFileSkipped() throws IOException {
+        byte[] content = "content".getBytes("UTF-8");
+        
+        File archive = new File(folder.getRoot(), "backup.zip");
+        BackupWriter writer = new BackupWriter(archive, 2);
+        writer.setSkipChanged(true);
+        writer.add("data/missing.txt", new File(folder.getRoot(), "missing.txt"));
+        writer.add("images/missing.jpg", new File(folder.getRoot(), "missing.jpg"));
+        writer.add("data/present.txt", write("present.txt", content));
+        writer.add("images/large.jpg", write("large.jpg", random(_LARGE)));
+        writer.flush();
+        
+        assertEquals(2, writer.getSkipped().size());
+        assertTrue(writer.getSkipped().contains("data/missing.txt"));
+        assertTrue(writer.getSkipped().contains("images/missing.jpg"));
+        
+        writer.close();
+        
+        ZipFile zip = new ZipFile(archive);
+        try {
+            assertEquals(2, zip.size());
+            assertNull(zip.getEntry("data/missing.txt"));
+            assertEntry(zip, "data/present.txt", content, ZipEntry.DEFLATED);
+        } finally {
+            zip.close();
+        }
+    }
+    
+    @Test(timeout = 60000)
+    public void abort() throws IOException {
+        File archive = new File(folder.getRoot(), "backup.zip");
+        BackupWriter writer = new BackupWriter(archive, 1);
+        
+        try {
+            for (int i = 0; i < 10; i++)
+                writer.add("data/" + i + ".data", write(i + ".data", new byte[_LARGE]));
+            
+            writer.add("data/missing.txt", new File(folder.getRoot(), "missing.txt"));
+            
+            for (int i = 10; i < 20; i++)
+                writer.add("data/" + i + ".data", write(i + ".data", new byte[_LARGE]));
+            
+            writer.close();
+            fail("A missing file should fail the archive");
+        } catch (IOException expected) {
+            writer.abort();
+        }
+    }
+    
+    private void assertEntry(ZipFile zip, String name, byte[] content, int method) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        assertEquals(name, method, entry.getMethod());
+        assertEquals(name, content.length, entry.getSize());
+        
+        InputStream is = zip.getInputStream(entry);
+        try {
+            assertArrayEquals(name, content, read(is));
+        } finally {
+            is.close();
+        }
+    }
+    
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+    
+    private byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = is.read(buffer)) > 0)
+            bos.write(buffer, 0, read);
+        return bos.toByteArray();
+    }
+    
+    private byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,222 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.backup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.datacrow.core.DcConfig;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RestoreEngineTest {
+
+    private static final String _FULL = "datacrow_backup_1.zip";
+    private static final String _INCREMENTAL = "datacrow_backup_2.zip";
+    
+    private static final String _HASH_SETTINGS = "11" + repeat('1', 62);
+    private static final String _HASH_SETTINGS_CHANGED = "22" + repeat('2', 62);
+    private static final String _HASH_REMOVED = "33" + repeat('3', 62);
+    private static final String _HASH_IMAGE = "44" + repeat('4', 62);
+    
+    private static final long _MODIFIED = 1500000000000L;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File dataDir;
+    private File backupDir;
+    
+    @Before
+    public void setUp() throws IOException {
+        dataDir = folder.newFolder("data");
+        backupDir = folder.newFolder("backup");
+        DcConfig.getInstance().setDataDir(dataDir.toString() + File.separator);
+    }
+    
+    @Test
+    public void restoreFull() throws IOException {
+        createFullBackup();
+        
+        assertTrue(new RestoreEngine(null, new File(backupDir, _FULL), new RestoreSelection(), 2).restore());
+        
+        assertContent("settings/a.properties", "a=1");
+        assertContent("settings/removed.properties", "removed=1");
+        assertContent("images/x.jpg", "image");
+        assertContent("images/y.jpg", "image");
+        
+        assertEquals(_MODIFIED, new File(dataDir, "settings/a.properties").lastModified());
+        
+        // not part of the data
+        assertFalse(new File(dataDir, "version.txt").exists());
+        assertFalse(new File(dataDir, BackupManifest._NAME).exists());
+        assertFalse(new File(dataDir, BackupManifest._BLOBS).exists());
+    }
+    
+    @Test
+    public void restoreIncremental() throws IOException {
+        createFullBackup();
+        
+        BackupManifest manifest = new BackupManifest(_INCREMENTAL);
+        manifest.setBase(_FULL);
+        manifest.put("settings/a.properties", new BackupManifest.Entry(_HASH_SETTINGS_CHANGED, 3, _MODIFIED, _INCREMENTAL, false));
+        manifest.put("images/x.jpg", new BackupManifest.Entry(_HASH_IMAGE, 5, _MODIFIED, _FULL, true));
+        manifest.put("images/y.jpg", new BackupManifest.Entry(_HASH_IMAGE, 5, _MODIFIED, _FULL, true));
+        
+        BackupWriter writer = new BackupWriter(new File(backupDir, _INCREMENTAL), 2);
+        writer.add("settings/a.properties", bytes("a=2"));
+        writer.add(BackupManifest._NAME, bytes(manifest));
+        writer.add(BackupManifest._DELETED, bytes("settings/removed.properties\n"));
+        writer.close();
+        
+        // present since the full backup
+        write(new File(dataDir, "settings/removed.properties"), bytes("removed=1"));
+        
+        assertTrue(new RestoreEngine(null, new File(backupDir, _INCREMENTAL), new RestoreSelection(), 2).restore());
+        
+        assertContent("settings/a.properties", "a=2");
+        assertContent("images/x.jpg", "image");
+        assertContent("images/y.jpg", "image");
+        assertFalse(new File(dataDir, "settings/removed.properties").exists());
+    }
+    
+    @Test
+    public void restoreSelection() throws IOException {
+        createFullBackup();
+        
+        RestoreSelection selection = RestoreSelection.none();
+        selection.setImages(true);
+        
+        assertTrue(new RestoreEngine(null, new File(backupDir, _FULL), selection, 2).restore());
+        
+        assertFalse(new File(dataDir, "settings/a.properties").exists());
+        assertContent("images/x.jpg", "image");
+    }
+    
+    @Test
+    public void restoreWithoutManifest() throws IOException {
+        BackupWriter writer = new BackupWriter(new File(backupDir, _FULL), 2);
+        writer.add("version.txt", bytes("4.0"));
+        writer.add("settings/a.properties", bytes("a=1"));
+        writer.add("settings/datacrow.log", bytes("log"));
+        writer.close();
+        
+        assertTrue(new RestoreEngine(null, new File(backupDir, _FULL), new RestoreSelection(), 2).restore());
+        
+        assertContent("settings/a.properties", "a=1");
+        assertFalse(new File(dataDir, "settings/datacrow.log").exists());
+        assertEquals("4.0", RestoreEngine.getVersion(new File(backupDir, _FULL)));
+    }
+    
+    @Test(expected = IOException.class)
+    public void missingPreviousArchive() throws IOException {
+        BackupManifest manifest = new BackupManifest(_INCREMENTAL);
+        manifest.setBase(_FULL);
+        manifest.put("images/x.jpg", new BackupManifest.Entry(_HASH_IMAGE, 5, _MODIFIED, _FULL, true));
+        
+        BackupWriter writer = new BackupWriter(new File(backupDir, _INCREMENTAL), 2);
+        writer.add(BackupManifest._NAME, bytes(manifest));
+        writer.close();
+        
+        new RestoreEngine(null, new File(backupDir, _INCREMENTAL), new RestoreSelection(), 2).restore();
+    }
+    
+    private void createFullBackup() throws IOException {
+        BackupManifest manifest = new BackupManifest(_FULL);
+        manifest.put("settings/a.properties", new BackupManifest.Entry(_HASH_SETTINGS, 3, _MODIFIED, _FULL, false));
+        manifest.put("settings/removed.properties", new BackupManifest.Entry(_HASH_REMOVED, 9, _MODIFIED, _FULL, false));
+        
+        // the same content is stored once
+        manifest.put("images/x.jpg", new BackupManifest.Entry(_HASH_IMAGE, 5, _MODIFIED, _FULL, true));
+        manifest.put("images/y.jpg", new BackupManifest.Entry(_HASH_IMAGE, 5, _MODIFIED, _FULL, true));
+        
+        BackupWriter writer = new BackupWriter(new File(backupDir, _FULL), 2);
+        writer.add("version.txt", bytes("4.0"));
+        writer.add("settings/a.properties", bytes("a=1"));
+        writer.add("settings/removed.properties", bytes("removed=1"));
+        writer.add(BackupManifest.getBlobName(_HASH_IMAGE, "images/x.jpg"), bytes("image"));
+        writer.add(BackupManifest._NAME, bytes(manifest));
+        writer.close();
+    }
+    
+    private void assertContent(String name, String content) throws IOException {
+        File file = new File(dataDir, name);
+        assertTrue(name, file.exists());
+        
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = is.read(buffer)) > 0)
+                bos.write(buffer, 0, read);
+            
+            assertArrayEquals(name, bytes(content), bos.toByteArray());
+        } finally {
+            is.close();
+        }
+    }
+    
+    private void write(File file, byte[] content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+    }
+    
+    private byte[] bytes(String s) throws IOException {
+        return s.getBytes("UTF-8");
+    }
+    
+    private byte[] bytes(BackupManifest manifest) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        manifest.save(bos);
+        return bos.toByteArray();
+    }
+    
+    private static String repeat(char c, int count) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < count; i++)
+            sb.append(c);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,162 @@
+/******************************************************************************
+ *                                     __                                     *
+ *                              <-----/@@\----->                              *
+ *                             <-< <  \\//  > >->                             *
+ *                               <-<-\ __ /->->                               *
+ *                               Data /  \ Crow                               *
+ *                                   ^    ^                                   *
+ *                              info@datacrow.net                             *
+ *                                                                            *
+ *                       This file is part of Data Crow.                      *
+ *       Data Crow is free software; you can redistribute it and/or           *
+ *        modify it under the terms of the GNU General Public                 *
+ *       License as published by the Free Software Foundation; either         *
+ *              version 3 of the License, or any later version.               *
+ *                                                                            *
+ *        Data Crow is distributed in the hope that it will be useful,        *
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *           MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.             *
+ *           See the GNU General Public License for more details.             *
+ *                                                                            *
+ *        You should have received a copy of the GNU General Public           *
+ *  License along with this program. If not, see http://www.gnu.org/licenses  *
+ *                                                                            *
+ ******************************************************************************/
+
+package net.datacrow.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import net.datacrow.core.DcConfig;
+import net.datacrow.core.modules.DcModules;
+import net.datacrow.core.objects.helpers.Permission;
+import net.datacrow.core.objects.helpers.User;
+import net.datacrow.core.security.SecuredUser;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UpdateQueryTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+    
+    private static SecuredUser su;
+    private static SecuredUser other;
+    
+    @BeforeClass
+    public static void initialize() throws Exception {
+        DcConfig dcc = DcConfig.getInstance();
+        dcc.setOperatingMode(DcConfig._OPERATING_MODE_SERVER);
+        dcc.setInstallationDir(new File(System.getProperty("user.dir")).getAbsolutePath() + File.separator);
+        dcc.setDataDir(folder.getRoot().getAbsolutePath() + File.separator);
+        
+        DcModules.load();
+        
+        su = new SecuredUser(getUser("DC_ADMIN"), "");
+        other = new SecuredUser(getUser("OTHER"), "");
+    }
+    
+    @Test
+    public void mergeFieldValues() {
+        User item = getUser("USER1");
+        item.setValue(User._C_NAME, "first");
+        UpdateQuery first = new UpdateQuery(su, item);
+        
+        User update = copy(item);
+        update.setValue(User._D_DESCRIPTION, "second");
+        
+        assertTrue(first.merge(new UpdateQuery(su, update)));
+        
+        // the values of both updates are stored by the first update
+        assertEquals("first", item.getValue(User._C_NAME));
+        assertEquals("second", item.getValue(User._D_DESCRIPTION));
+        assertTrue(item.isChanged(User._D_DESCRIPTION));
+    }
+    
+    @Test
+    public void mergeLaterValueWins() {
+        User item = getUser("USER1");
+        item.setValue(User._C_NAME, "first");
+        UpdateQuery first = new UpdateQuery(su, item);
+        
+        User update = copy(item);
+        update.setValue(User._C_NAME, "second");
+        
+        assertTrue(first.merge(new UpdateQuery(su, update)));
+        assertEquals("second", item.getValue(User._C_NAME));
+    }
+    
+    @Test
+    public void mergeSameItem() {
+        User item = getUser("USER1");
+        item.setValue(User._C_NAME, "first");
+        
+        assertTrue(new UpdateQuery(su, item).merge(new UpdateQuery(su, item)));
+        assertEquals("first", item.getValue(User._C_NAME));
+    }
+    
+    @Test
+    public void noMergeForOtherUser() {
+        User item = getUser("USER1");
+        item.setValue(User._C_NAME, "first");
+        
+        User update = copy(item);
+        update.setValue(User._C_NAME, "second");
+        
+        assertFalse(new UpdateQuery(su, item).merge(new UpdateQuery(other, update)));
+        assertEquals("first", item.getValue(User._C_NAME));
+    }
+    
+    @Test
+    public void noMergeForChangedChildren() {
+        User item = getUser("USER1");
+        item.setValue(User._C_NAME, "first");
+        
+        User update = copy(item);
+        update.setValue(User._C_NAME, "second");
+        
+        Permission permission = (Permission) DcModules.get(DcModules._PERMISSION).getItem();
+        permission.setValue(Permission._C_MODULE, Long.valueOf(DcModules._USER));
+        permission.setValue(Permission._D_VIEW, Boolean.TRUE);
+        update.addChild(permission);
+        
+        // the children are stored by the update itself
+        assertFalse(new UpdateQuery(su, item).merge(new UpdateQuery(su, update)));
+        assertEquals("first", item.getValue(User._C_NAME));
+    }
+    
+    @Test
+    public void noMergeAfterExecution() {
+        User item = getUser("USER1");
+        UpdateQuery first = new UpdateQuery(su, item);
+        first.clear();
+        
+        assertFalse(first.merge(new UpdateQuery(su, copy(item))));
+    }
+    
+    private static User getUser(String loginName) {
+        User user = new User();
+        user.setValue(User._A_LOGINNAME, loginName);
+        user.setIDs();
+        return user;
+    }
+    
+    /**
+     * A second instance of the same item without changes.
+     */
+    private User copy(User item) {
+        User copy = new User();
+        copy.setValue(User._ID, item.getID());
+        copy.setValue(User._A_LOGINNAME, item.getValue(User._A_LOGINNAME));
+        copy.setChanged(User._ID, false);
+        copy.setChanged(User._A_LOGINNAME, false);
+        return copy;
+    }
+}
@@ -1,3 +1,8 @@
 #!/bin/sh
 release=$(curl --silent "https://api.github.com/repos/datacrow/core/releases/latest" | grep -Po '"tag_name": "\K.*?(?=")')
 wget https://github.com/datacrow/core/releases/download/${release}/datacrow-core.jar -O ./lib/datacrow-core.jar
+
+# only needed to run the tests (ant test)
+mkdir -p ./lib/junit
+wget https://repo1.maven.org/maven2/junit/junit/4.13.2/junit-4.13.2.jar -O ./lib/junit/junit.jar
+wget https://repo1.maven.org/maven2/org/hamcrest/hamcrest-core/1.3/hamcrest-core-1.3.jar -O ./lib/junit/hamcrest-core.jar